@@ -1,25 +1,75 @@
 import java.awt.Point;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 class Referee extends MultiReferee {
@@ -39,19 +89,13 @@ class Referee extends MultiReferee {
     private static final int EXTRA_SPACE_BETWEEN_FACTORIES = 300;
     private static final int COST_INCREASE_PRODUCTION = 10;
     private static final int DAMAGE_DURATION = 5;
+    private static final String ENGINE_SOA = "soa";
+    private static final String RNG_SPLITMIX = "splitmix";
+    private static final int MAX_ROUNDS = 200;
+    private static final int FIRST_ROUND_TIME_MILLIS = 1000;
+    private static final int ROUND_TIME_MILLIS = 50;
     private static final boolean MOVE_RESTRICTION_ENABLED;
     private static final boolean INCREASE_ACTION_ENABLED;
-    private static int FACTORY_RADIUS;
-
-    private static final Pattern PLAYER_INPUT_MOVE_PATTERN = Pattern
-            .compile("MOVE (?<src>[0-9]{1,8})\\s+(?<dst>[0-9]{1,8})\\s+(?<units>([0-9]{1,8}))", Pattern.CASE_INSENSITIVE);
-    private static final Pattern PLAYER_INPUT_WAIT_PATTERN = Pattern.compile("WAIT", Pattern.CASE_INSENSITIVE);
-    private static final Pattern PLAYER_INPUT_MSG_PATTERN = Pattern.compile("MSG (?<message>.*)", Pattern.CASE_INSENSITIVE);
-    private static final Pattern PLAYER_INPUT_BOMB_PATTERN = Pattern.compile("BOMB (?<src>[0-9]{1,8})\\s+(?<dst>[0-9]{1,8})",
-            Pattern.CASE_INSENSITIVE);
-    private static final Pattern PLAYER_INPUT_INC_PATTERN = Pattern.compile("INC (?<src>[0-9]{1,8})", Pattern.CASE_INSENSITIVE);
-    private static final Pattern PLAYER_INPUT_ACTION_SEPARATOR_PATTERN = Pattern.compile("\\s*;\\s*(?=WAIT|MOVE|BOMB|INC|MSG)",
-            Pattern.CASE_INSENSITIVE);
 
     static {
         switch (LEAGUE_LEVEL) {
@@ -81,18 +125,25 @@ class Referee extends MultiReferee {
         }
     }
 
-    private Player[] players;
-    private Factory[] factories;
-    private List<Troop> troops;
-    private List<Troop> newTroops;
-    private List<Bomb> bombs;
-    private List<Bomb> newBombs;
-    private Random random;
+    /**
+     * Maps shared by the games of this JVM, loaded from the file named by the "mapCacheFile" system property. Without the
+     * file, no map is cached: the games of a long-running JVM would keep every map they generate.
+     */
+    private static MapCache mapCache;
+
+    /**
+     * Metrics of the games of this JVM, recorded when the "metricsFile" system property names the JSON file written at
+     * exit
+     */
+    private static TurnMetrics metrics;
+
+    /**
+     * Exporter of the turns of the games of this JVM, writing to the directory named by the "datasetDirectory" system
+     * property, closed at exit
+     */
+    private static DatasetExporter datasetExporter;
 
-    // Properties
-    private long seed;
-    private Integer customFactoryCount;
-    private Integer customInitialUnitCount;
+    private Game game;
 
     private static enum EntityType {
         FACTORY("FACTORY"), TROOP("TROOP"), BOMB("BOMB");
@@ -111,22 +162,22 @@ class Referee extends MultiReferee {
 
     private static class Player {
         private int id;
-        private List<MoveAction> lastMoveActions;
-        private List<BombAction> lastBombActions;
-        private List<IncAction> lastIncActions;
+        private Orders lastOrders;
         private String message;
         private int score;
+        // Units in the factories and troops of the player, and production rate of its factories, kept up to date by
+        // every change so that the score and the end conditions do not scan the entities
+        private int unitCount;
+        private int productionRate;
         private Factory[] factories;
-        private List<Troop> troops;
+        private Collection<Troop> troops;
         private int remainingBombs;
 
         public Player(int id) {
             this.id = id;
             this.score = 0;
             this.remainingBombs = BOMBS_PER_PLAYER;
-            this.lastMoveActions = new ArrayList<>();
-            this.lastBombActions = new ArrayList<>();
-            this.lastIncActions = new ArrayList<>();
+            this.lastOrders = new Orders();
         }
 
         public void setDead() {
@@ -143,9 +194,11 @@ class Referee extends MultiReferee {
                 }
             }
             this.score = 0;
+            this.unitCount = 0;
+            this.productionRate = 0;
         }
 
-        public void setTroops(List<Troop> troops) {
+        public void setTroops(Collection<Troop> troops) {
             this.troops = troops;
         }
 
@@ -154,90 +207,69 @@ class Referee extends MultiReferee {
         }
     }
 
-    private static abstract class Action {
-    }
-
-    private static class MoveAction extends Action {
-        private Factory src;
-        private Factory dst;
-        private int units;
-
-        public MoveAction(Factory src, Factory dst, int units) {
-            this.src = src;
-            this.dst = dst;
-            this.units = units;
-        }
-    }
-
-    private static class BombAction extends Action {
-        private Factory src;
-        private Factory dst;
-
-        public BombAction(Factory src, Factory dst) {
-            this.src = src;
-            this.dst = dst;
-        }
-    }
-
-    private static class IncAction extends Action {
-        private Factory src;
-
-        public IncAction(Factory src) {
-            this.src = src;
-        }
-    }
-
     private static abstract class Entity {
-        private static int UNIQUE_ENTITY_ID = 0;
-
         protected final int id;
         protected final EntityType type;
 
-        public Entity(EntityType type) {
-            this.id = UNIQUE_ENTITY_ID++;
+        public Entity(int id, EntityType type) {
+            this.id = id;
             this.type = type;
         }
 
-        public abstract String toPlayerString(int playerIdx);
+        public abstract StringBuilder appendPlayerString(StringBuilder out, int playerIdx);
+
+        public String toPlayerString(int playerIdx) {
+            return appendPlayerString(new StringBuilder(), playerIdx).toString();
+        }
+
+        protected StringBuilder appendPlayerString(StringBuilder out, int arg1, int arg2, int arg3, int arg4, int arg5) {
+            return appendPlayerString(out, id, type, arg1, arg2, arg3, arg4, arg5);
+        }
 
-        protected String toPlayerString(int arg1, int arg2, int arg3, int arg4, int arg5) {
-            return id + " " + type + " " + arg1 + " " + arg2 + " " + arg3 + " " + arg4 + " " + arg5;
+        public static StringBuilder appendPlayerString(StringBuilder out, int id, EntityType type, int arg1, int arg2, int arg3, int arg4,
+                int arg5) {
+            return out.append(id).append(' ').append(type.name).append(' ').append(arg1).append(' ').append(arg2).append(' ').append(arg3)
+                    .append(' ').append(arg4).append(' ').append(arg5);
         }
     }
 
     private static class Factory extends Entity {
         private Player owner;
         private Point position;
+        private int radius;
         private int unitCount;
         private int productionRate;
         private int disabled;
-        private Map<Integer, Integer> distances;
+        private int index;
+        private int[] distances;
+        private int distanceRow;
 
         private int[] unitsReadyToFight = { 0, 0 };
 
-        public Factory(Player owner, int x, int y, int unitCount, int productionRate) {
-            super(EntityType.FACTORY);
+        public Factory(int id, Player owner, int x, int y, int radius, int unitCount, int productionRate) {
+            super(id, EntityType.FACTORY);
             this.owner = owner;
             this.position = new Point(x, y);
+            this.radius = radius;
             this.unitCount = unitCount;
             this.productionRate = productionRate;
         }
 
-        public void computeDistances(Factory[] factories) {
-            distances = new LinkedHashMap<>();
-            for (Factory factory : factories) {
-                if (this != factory) {
-                    distances.put(factory.id, (int) Math.round((position.distance(factory.position) - getRadius() - factory.getRadius()) / 800.));
-                }
-            }
+        /**
+         * Use a distance matrix already computed for the map
+         */
+        public void setDistances(int index, int factoryCount, int[] distances) {
+            this.index = index;
+            this.distances = distances;
+            this.distanceRow = index * factoryCount;
         }
 
         public int getDistanceTo(Factory factory) {
-            return distances.get(factory.id);
+            return distances[distanceRow + factory.index];
         }
 
         public int getRadius() {
-            return FACTORY_RADIUS;
+            return radius;
         }
 
         public int getCurrentProductionRate() {
@@ -245,12 +277,12 @@ class Referee extends MultiReferee {
         }
 
         @Override
-        public String toPlayerString(int playerIdx) {
+        public StringBuilder appendPlayerString(StringBuilder out, int playerIdx) {
             int ownerShip = 0;
             if (owner != null) {
                 ownerShip = (playerIdx == owner.id) ? 1 : -1;
             }
-            return toPlayerString(ownerShip, unitCount, this.productionRate, disabled, 0);
+            return appendPlayerString(out, ownerShip, unitCount, this.productionRate, disabled, 0);
         }
 
         public String toViewStringInit() {
@@ -264,555 +296,6083 @@ class Referee extends MultiReferee {
 
     private static abstract class MovingEntity extends Entity {
         protected Player owner;
-        protected int remainingTurns;
         protected Factory source;
         protected Factory destination;
+        protected TimingWheel<?> wheel;
+        protected int arrivalTurn;
+        protected EntityList<?> list;
+        protected MovingEntity previous;
+        protected MovingEntity next;
 
-        public MovingEntity(EntityType type, Factory source, Factory destination) {
-            super(type);
+        public MovingEntity(int id, EntityType type, Factory source, Factory destination, TimingWheel<?> wheel) {
+            super(id, type);
             this.owner = source.owner;
             this.source = source;
             this.destination = destination;
-            this.remainingTurns = source.getDistanceTo(destination);
+            this.wheel = wheel;
+            this.arrivalTurn = wheel.getTurn() + source.getDistanceTo(destination);
         }
 
-        public void move() {
-            this.remainingTurns--;
-        }
-
-        public <A extends MovingEntity> A findWithSameRouteInList(List<A> list) {
-            for (A other : list) {
-                if (other.source == this.source && other.destination == this.destination) {
-                    return other;
-                }
-            }
-            return null;
+        public int getRemainingTurns() {
+            return arrivalTurn - wheel.getTurn();
         }
     }
 
     private static class Bomb extends MovingEntity {
-        public Bomb(Factory source, Factory destination) {
-            super(EntityType.BOMB, source, destination);
+        public Bomb(int id, Factory source, Factory destination, TimingWheel<Bomb> wheel) {
+            super(id, EntityType.BOMB, source, destination, wheel);
         }
 
         @Override
-        public String toPlayerString(int playerIdx) {
+        public StringBuilder appendPlayerString(StringBuilder out, int playerIdx) {
             if (owner.id == playerIdx) {
-                return toPlayerString(1, source.id, destination.id, remainingTurns, 0);
+                return appendPlayerString(out, 1, source.id, destination.id, getRemainingTurns(), 0);
             } else {
-                return toPlayerString(-1, source.id, -1, -1, 0);
+                return appendPlayerString(out, -1, source.id, -1, -1, 0);
             }
         }
 
         public String toViewString() {
-            return id + " " + (owner == null ? 0 : (owner.id)) + " " + source.id + " " + destination.id + " " + remainingTurns;
+            return toViewString(id, owner == null ? 0 : owner.id, source.id, destination.id, getRemainingTurns());
+        }
+
+        public static String toViewString(int id, int owner, int sourceId, int destinationId, int remainingTurns) {
+            return id + " " + owner + " " + sourceId + " " + destinationId + " " + remainingTurns;
         }
 
         public void explode() {
             int damage = Math.min(destination.unitCount, Math.max(10, destination.unitCount / 2));
             destination.unitCount -= damage;
             destination.disabled = DAMAGE_DURATION;
+            if (destination.owner != null) {
+                destination.owner.unitCount -= damage;
+            }
         }
     }
 
     private static class Troop extends MovingEntity {
         private int unitCount;
 
-        public Troop(Factory source, Factory destination, int unitCount) {
-            super(EntityType.TROOP, source, destination);
+        public Troop(int id, Factory source, Factory destination, int unitCount, TimingWheel<Troop> wheel) {
+            super(id, EntityType.TROOP, source, destination, wheel);
             this.unitCount = unitCount;
         }
 
         @Override
-        public String toPlayerString(int playerIdx) {
+        public StringBuilder appendPlayerString(StringBuilder out, int playerIdx) {
             int ownerShip = 0;
             if (owner != null) {
                 ownerShip = (playerIdx == owner.id) ? 1 : -1;
             }
-            return toPlayerString(ownerShip, source.id, destination.id, unitCount, remainingTurns);
+            return appendPlayerString(out, ownerShip, source.id, destination.id, unitCount, getRemainingTurns());
         }
 
         public String toViewString() {
-            return id + " " + (owner == null ? 0 : (owner.id)) + " " + source.id + " " + destination.id + " " + unitCount + " " + remainingTurns;
+            return toViewString(id, owner == null ? 0 : owner.id, source.id, destination.id, unitCount, getRemainingTurns());
+        }
+
+        public static String toViewString(int id, int owner, int sourceId, int destinationId, int unitCount, int remainingTurns) {
+            return id + " " + owner + " " + sourceId + " " + destinationId + " " + unitCount + " " + remainingTurns;
         }
     }
 
-    @Override
-    protected void initReferee(int playerCount, Properties prop) throws InvalidFormatException {
-        this.seed = Long.valueOf(prop.getProperty("seed", String.valueOf(new Random(System.currentTimeMillis()).nextLong())));
-        String factoryCount = prop.getProperty("factory_count");
-        if (factoryCount != null) {
-            this.customFactoryCount = Integer.valueOf(factoryCount);
+    /**
+     * Insertion ordered collection of moving entities, linked through the entities themselves so that an entity is
+     * removed in constant time
+     */
+    private static class EntityList<E extends MovingEntity> extends AbstractCollection<E> {
+        private MovingEntity first;
+        private MovingEntity last;
+        private int size;
+
+        @Override
+        public boolean add(E entity) {
+            if (entity.list != null) {
+                throw new IllegalArgumentException("Entity " + entity.id + " is already in a list");
+            }
+            entity.list = this;
+            entity.previous = last;
+            if (last == null) {
+                first = entity;
+            } else {
+                last.next = entity;
+            }
+            last = entity;
+            size++;
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof MovingEntity) || ((MovingEntity) o).list != this) {
+                return false;
+            }
+            unlink((MovingEntity) o);
+            return true;
         }
-        String initialUnitCount = prop.getProperty("initial_unit_count");
-        if (initialUnitCount != null) {
-            this.customInitialUnitCount = Integer.valueOf(initialUnitCount);
+
+        private void unlink(MovingEntity entity) {
+            if (entity.previous == null) {
+                first = entity.next;
+            } else {
+                entity.previous.next = entity.next;
+            }
+            if (entity.next == null) {
+                last = entity.previous;
+            } else {
+                entity.next.previous = entity.previous;
+            }
+            entity.list = null;
+            entity.previous = null;
+            entity.next = null;
+            size--;
         }
 
-        newTroops = new ArrayList<>();
-        newBombs = new ArrayList<>();
+        @Override
+        public int size() {
+            return size;
+        }
 
-        this.random = new Random(seed);
-        generatePlayers(playerCount);
-        generateFactories();
+        @Override
+        public Iterator<E> iterator() {
+            return new Iterator<E>() {
+                private MovingEntity next = first;
+                private MovingEntity current;
 
-        this.troops = new LinkedList<>();
-        this.bombs = new LinkedList<>();
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
 
-        for (Player player : players) {
-            player.setTroops(troops);
-            player.setFactories(factories);
-        }
-    }
+                @Override
+                @SuppressWarnings("unchecked")
+                public E next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    current = next;
+                    next = next.next;
+                    return (E) current;
+                }
 
-    void generatePlayers(int playerCount) {
-        this.players = new Player[playerCount];
-        for (int i = 0; i < playerCount; i++) {
-            this.players[i] = new Player(i);
+                @Override
+                public void remove() {
+                    if (current == null) {
+                        throw new IllegalStateException();
+                    }
+                    unlink(current);
+                    current = null;
+                }
+            };
         }
     }
 
     /**
-     * Generate the factory objects
+     * Troops or bombs in flight, bucketed by arrival turn in a circular array of slots. Moving entities derive their
+     * remaining turns from their arrival turn, so a turn only touches the entities that arrive. There are more slots than
+     * the longest distance, so a slot never holds entities arriving on different turns.
      */
-    void generateFactories() {
-        int factoryCount;
-        if (customFactoryCount != null && customFactoryCount >= MIN_FACTORY_COUNT && customFactoryCount <= MAX_FACTORY_COUNT) {
-            factoryCount = customFactoryCount;
-        } else {
-            factoryCount = MIN_FACTORY_COUNT + this.random.nextInt(MAX_FACTORY_COUNT - MIN_FACTORY_COUNT + 1);
+    private static class TimingWheel<E extends MovingEntity> {
+        private final List<List<E>> slots = new ArrayList<>();
+        private final int mask;
+        private int turn;
+
+        public TimingWheel(int maxDistance) {
+            int slotCount = Integer.highestOneBit(Math.max(maxDistance, 1)) << 1;
+            for (int i = 0; i < slotCount; i++) {
+                slots.add(new ArrayList<E>());
+            }
+            this.mask = slotCount - 1;
         }
 
-        if (factoryCount % 2 == 0) { // factoryCount must be odd
-            factoryCount++;
+        public int getTurn() {
+            return turn;
         }
-        FACTORY_RADIUS = factoryCount > 10 ? 600 : 700;
 
-        int minSpaceBetweenFactories = 2 * (FACTORY_RADIUS + EXTRA_SPACE_BETWEEN_FACTORIES);
+        /**
+         * Move every entity in flight by one turn
+         */
+        public void advance() {
+            turn++;
+        }
 
-        this.factories = new Factory[factoryCount];
-        
-        int i = 0;
+        public void schedule(E entity) {
+            slots.get(entity.arrivalTurn & mask).add(entity);
+        }
 
-        // Add one factory at the center of the map
-        this.factories[i++] = new Factory(null, WIDTH / 2, HEIGHT / 2, 0, 0);
+        /**
+         * @return the entities arriving this turn, in the order they were scheduled. The caller clears the list once
+         *         they are solved.
+         */
+        public List<E> getArrivals() {
+            return slots.get(turn & mask);
+        }
+    }
 
-        while (i < factoryCount - 1) {
-            int x = random.nextInt(WIDTH / 2 - 2 * FACTORY_RADIUS) + FACTORY_RADIUS + EXTRA_SPACE_BETWEEN_FACTORIES;
-            int y = random.nextInt(HEIGHT - 2 * FACTORY_RADIUS) + FACTORY_RADIUS + EXTRA_SPACE_BETWEEN_FACTORIES;
+    /**
+     * Actions packed in an int, for the bots and searches that generate and store many of them. The type takes the 2 low
+     * bits, then come the source and destination factory indexes on 5 bits each, and the units on the 20 high bits. The
+     * units of a move are saturated at MAX_UNITS, more than a factory ever holds: the move sends the same units.
+     */
+    static class Action {
+        static final int MOVE = 0;
+        static final int BOMB = 1;
+        static final int INC = 2;
+        static final int MAX_UNITS = (1 << 20) - 1;
 
-            boolean valid = true;
-            for (int j = 0; j < i; j++) {
-                Factory factory = this.factories[j];
-                if (factory.position.distance(x, y) < minSpaceBetweenFactories) {
-                    valid = false;
-                    break;
-                }
-            }
+        private static final int FACTORY_MASK = (1 << 5) - 1;
 
-            if (valid) {
-                int productionRate = MIN_PRODUCTION_RATE + random.nextInt(MAX_PRODUCTION_RATE - MIN_PRODUCTION_RATE + 1);
+        public static int move(int src, int dst, int units) {
+            return MOVE | src << 2 | dst << 7 | Math.min(units, MAX_UNITS) << 12;
+        }
 
-                if (i == 1) {
-                    int unitCount;
-                    if (customInitialUnitCount != null && customInitialUnitCount >= PLAYER_INIT_UNITS_MIN
-                            && customInitialUnitCount <= PLAYER_INIT_UNITS_MAX) {
-                        unitCount = customInitialUnitCount;
-                    } else {
-                        unitCount = PLAYER_INIT_UNITS_MIN + random.nextInt(PLAYER_INIT_UNITS_MAX - PLAYER_INIT_UNITS_MIN + 1);
-                    }
-                    this.factories[i++] = new Factory(players[0], x, y, unitCount, productionRate);
-                    this.factories[i++] = new Factory(players[1], WIDTH - x, HEIGHT - y, unitCount, productionRate);
-                } else {
-                    int unitCount = random.nextInt(5 * productionRate + 1);
-                    this.factories[i++] = new Factory(null, x, y, unitCount, productionRate);
-                    this.factories[i++] = new Factory(null, WIDTH - x, HEIGHT - y, unitCount, productionRate);
-                }
-            }
+        public static int bomb(int src, int dst) {
+            return BOMB | src << 2 | dst << 7;
         }
 
-        int totalProductionRate = 0;
-        for (Factory factory : factories) {
-            factory.computeDistances(this.factories);
-            totalProductionRate += factory.productionRate;
+        public static int inc(int src) {
+            return INC | src << 2;
         }
-        
-        // Make sure that the initial accumulated production rate for all the factories is at least MIN_TOTAL_PRODUCTION_RATE
-        for (int j = 1; totalProductionRate < MIN_TOTAL_PRODUCTION_RATE && j < factories.length; j++) {
-            if (factories[j].productionRate < MAX_PRODUCTION_RATE) {
-                factories[j].productionRate++;
-                totalProductionRate++;
-            }
+
+        public static int getType(int action) {
+            return action & 3;
         }
-    }
 
-    @Override
-    protected Properties getConfiguration() {
-        Properties prop = new Properties();
-        prop.setProperty("seed", String.valueOf(this.seed));
-        if (this.customFactoryCount != null) {
-            prop.setProperty("factory_count", String.valueOf(this.customFactoryCount));
+        public static int getSource(int action) {
+            return action >>> 2 & FACTORY_MASK;
         }
-        if (this.customInitialUnitCount != null) {
-            prop.setProperty("initial_unit_count", String.valueOf(this.customInitialUnitCount));
+
+        public static int getDestination(int action) {
+            return action >>> 7 & FACTORY_MASK;
         }
-        return prop;
-    }
 
-    @Override
-    protected String[] getInitInputForPlayer(int playerIdx) {
-        List<String> data = new ArrayList<>();
-        data.add(String.valueOf(factories.length));
+        public static int getUnits(int action) {
+            return action >>> 12;
+        }
 
-        // Factory distances
-        List<String> links = new ArrayList<>();
-        for (int i = 0; i < factories.length; i++) {
-            for (int j = i + 1; j < factories.length; j++) {
-                links.add(factories[i].id + " " + factories[j].id + " " + factories[i].getDistanceTo(factories[j]));
+        public static String toString(int action) {
+            switch (getType(action)) {
+            case MOVE:
+                return "MOVE " + getSource(action) + " " + getDestination(action) + " " + getUnits(action);
+            case BOMB:
+                return "BOMB " + getSource(action) + " " + getDestination(action);
+            default:
+                return "INC " + getSource(action);
             }
         }
-        data.add(String.valueOf(links.size()));
-        data.addAll(links);
-
-        return data.toArray(new String[data.size()]);
     }
 
-    @Override
-    protected void prepare(int round) {
-    }
+    /**
+     * Reusable buffer of packed actions
+     */
+    static class ActionBuffer {
+        private static final int INITIAL_CAPACITY = 64;
 
-    @Override
-    protected String[] getInputForPlayer(int round, int playerIdx) {
-        List<String> data = new ArrayList<>();
-        List<String> entities = new ArrayList<>();
+        private int[] actions = new int[INITIAL_CAPACITY];
+        private int size;
 
-        for (Factory factory : factories) {
-            entities.add(factory.toPlayerString(playerIdx));
+        public void clear() {
+            size = 0;
         }
-        for (Troop troop : troops) {
-            entities.add(troop.toPlayerString(playerIdx));
+
+        public void add(int action) {
+            if (size == actions.length) {
+                actions = Arrays.copyOf(actions, 2 * size);
+            }
+            actions[size++] = action;
         }
-        for (Bomb bomb : bombs) {
-            entities.add(bomb.toPlayerString(playerIdx));
+
+        public int get(int index) {
+            return actions[index];
         }
 
-        data.add(String.valueOf(entities.size()));
-        data.addAll(entities);
-        return data.toArray(new String[data.size()]);
+        public int size() {
+            return size;
+        }
     }
 
-    @Override
-    protected int getExpectedOutputLineCountForPlayer(int playerIdx) {
-        return 1;
-    }
+    /**
+     * Orders of one player for a turn, stored in reusable primitive buffers. Factories are designated by their index.
+     */
+    static class Orders {
+        private static final int INITIAL_CAPACITY = 16;
 
-    @Override
-    protected void handlePlayerOutput(int frame, int round, int playerIdx, String[] outputs)
-            throws WinException, LostException, InvalidInputException {
+        private int bombCount;
+        private int[] bombSource = new int[INITIAL_CAPACITY];
+        private int[] bombDestination = new int[INITIAL_CAPACITY];
 
-        Player player = this.players[playerIdx];
-        player.lastBombActions.clear();
-        player.lastIncActions.clear();
-        player.lastMoveActions.clear();
-        player.message = null;
-        try {
-            for (String line : outputs) {
-                for (String action : PLAYER_INPUT_ACTION_SEPARATOR_PATTERN.split(line)) {
-                    Matcher matchMove = PLAYER_INPUT_MOVE_PATTERN.matcher(action);
-                    Matcher matchWait = PLAYER_INPUT_WAIT_PATTERN.matcher(action);
-                    Matcher matchBomb = PLAYER_INPUT_BOMB_PATTERN.matcher(action);
-                    Matcher matchInc = PLAYER_INPUT_INC_PATTERN.matcher(action);
-                    Matcher matchMessage = PLAYER_INPUT_MSG_PATTERN.matcher(action);
-                    if (matchMove.matches()) {
-                        if (MOVE_RESTRICTION_ENABLED && !player.lastMoveActions.isEmpty()) {
-                            // Silently ignore multiple moves
-                            continue;
-                        }
+        private int moveCount;
+        private int[] moveSource = new int[INITIAL_CAPACITY];
+        private int[] moveDestination = new int[INITIAL_CAPACITY];
+        private int[] moveUnits = new int[INITIAL_CAPACITY];
 
-                        int src = Integer.parseInt(matchMove.group("src"));
-                        int dst = Integer.parseInt(matchMove.group("dst"));
-                        int units = Integer.parseInt(matchMove.group("units"));
+        private int incCount;
+        private int[] incSource = new int[INITIAL_CAPACITY];
 
-                        if (src >= this.factories.length) {
-                            throw new InvalidInputException("0 <= source < " + this.factories.length, String.valueOf(src));
-                        }
-                        if (dst >= this.factories.length) {
-                            throw new InvalidInputException("0 <= destination < " + this.factories.length, String.valueOf(dst));
-                        }
-                        if (this.factories[src].owner != player) {
-                            throw new LostException("MoveFromNotControlledFactory", src);
-                        }
-                        if (src == dst) {
-                            throw new LostException("MoveSameSourceDestination", src);
-                        }
+        public void clear() {
+            bombCount = 0;
+            moveCount = 0;
+            incCount = 0;
+        }
 
-                        player.lastMoveActions.add(new MoveAction(this.factories[src], this.factories[dst], units));
-                    } else if (matchBomb.matches()) {
-                        int src = Integer.parseInt(matchBomb.group("src"));
-                        int dst = Integer.parseInt(matchBomb.group("dst"));
-                        if (src >= this.factories.length) {
-                            throw new InvalidInputException("0 <= source < " + this.factories.length, String.valueOf(src));
-                        }
-                        if (dst >= this.factories.length) {
-                            throw new InvalidInputException("0 <= destination < " + this.factories.length, String.valueOf(dst));
-                        }
-                        if (this.factories[src].owner != player) {
-                            throw new LostException("BombFromNotControlledFactory", src);
-                        }
-                        if (src == dst) {
-                            throw new LostException("BombSameSourceDestination", src);
-                        }
+        public void addBomb(int src, int dst) {
+            if (bombCount == bombSource.length) {
+                bombSource = Arrays.copyOf(bombSource, 2 * bombCount);
+                bombDestination = Arrays.copyOf(bombDestination, 2 * bombCount);
+            }
+            bombSource[bombCount] = src;
+            bombDestination[bombCount] = dst;
+            bombCount++;
+        }
 
-                        player.lastBombActions.add(new BombAction(this.factories[src], this.factories[dst]));
-                    } else if (matchInc.matches()) {
-                        if (!INCREASE_ACTION_ENABLED) {
-                            // Silently ignore increase actions
-                            continue;
-                        }
+        public void addMove(int src, int dst, int units) {
+            if (moveCount == moveSource.length) {
+                moveSource = Arrays.copyOf(moveSource, 2 * moveCount);
+                moveDestination = Arrays.copyOf(moveDestination, 2 * moveCount);
+                moveUnits = Arrays.copyOf(moveUnits, 2 * moveCount);
+            }
+            moveSource[moveCount] = src;
+            moveDestination[moveCount] = dst;
+            moveUnits[moveCount] = units;
+            moveCount++;
+        }
 
-                        int src = Integer.parseInt(matchInc.group("src"));
-                        
-                        if (src >= this.factories.length) {
-                            throw new InvalidInputException("0 <= source < " + this.factories.length, String.valueOf(src));
-                        }                        
-                        if (this.factories[src].owner != player) {
-                            throw new LostException("IncFromNotControlledFactory", src);
-                        }
+        public void addInc(int src) {
+            if (incCount == incSource.length) {
+                incSource = Arrays.copyOf(incSource, 2 * incCount);
+            }
+            incSource[incCount] = src;
+            incCount++;
+        }
 
-                        player.lastIncActions.add(new IncAction(this.factories[src]));
-                    } else if (matchWait.matches()) {
-                        // do nothing.
-                    } else if (matchMessage.matches()) {
-                        String message = matchMessage.group("message").trim();
-                        if (message.length() > 100) {
-                            message = message.substring(0, 100);
+        /**
+         * Add a packed action, see Action
+         */
+        public void add(int action) {
+            switch (Action.getType(action)) {
+            case Action.MOVE:
+                addMove(Action.getSource(action), Action.getDestination(action), Action.getUnits(action));
+                break;
+            case Action.BOMB:
+                addBomb(Action.getSource(action), Action.getDestination(action));
+                break;
+            default:
+                addInc(Action.getSource(action));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Lists the legal actions of a player in the state of a Simulation, with the checks of Game.readPlayerOutput
+     * (the source is owned by the player, the destination is another factory) and the conditions for an order to have
+     * an effect: a move sends units, a bomb needs a remaining bomb, an increase needs COST_INCREASE_PRODUCTION units and a
+     * production rate below MAX_PRODUCTION_RATE. Each action is legal alone: actions combined in the same turn may
+     * still cancel each other, such as a move following a bomb on the same route, or two moves when
+     * MOVE_RESTRICTION_ENABLED.
+     */
+    static class ActionEnumerator {
+        private final int moveSplits;
+
+        public ActionEnumerator() {
+            this(1);
+        }
+
+        /**
+         * @param moveSplits
+         *            the number of moves listed per route, sending 1/moveSplits, 2/moveSplits... up to all of the
+         *            units of the source
+         */
+        public ActionEnumerator(int moveSplits) {
+            if (moveSplits < 1) {
+                throw new IllegalArgumentException("At least one move per route: " + moveSplits);
+            }
+            this.moveSplits = moveSplits;
+        }
+
+        /**
+         * Replace the content of the buffer with the legal actions of the player
+         */
+        public void enumerate(Simulation state, int playerId, ActionBuffer actions) {
+            actions.clear();
+            boolean canBomb = state.remainingBombs[playerId] > 0;
+            for (int src = 0; src < state.factoryCount; src++) {
+                if (state.factoryOwner[src] != playerId) {
+                    continue;
+                }
+                int units = state.factoryUnits[src];
+                for (int dst = 0; dst < state.factoryCount; dst++) {
+                    if (dst == src) {
+                        continue;
+                    }
+                    int previousUnits = 0;
+                    for (int split = 1; split <= moveSplits; split++) {
+                        int moveUnits = (int) ((long) units * split / moveSplits);
+                        if (moveUnits > previousUnits) {
+                            actions.add(Action.move(src, dst, moveUnits));
+                            previousUnits = moveUnits;
                         }
-                        player.message = message;
-                    } else {
-                        throw new InvalidInputException("A valid action", action);
                     }
+                    if (canBomb) {
+                        actions.add(Action.bomb(src, dst));
+                    }
+                }
+                if (INCREASE_ACTION_ENABLED && units >= COST_INCREASE_PRODUCTION && state.factoryProduction[src] < MAX_PRODUCTION_RATE) {
+                    actions.add(Action.inc(src));
                 }
             }
-        } catch (InvalidInputException | LostException e) {
-            player.setDead();
-            throw e;
         }
     }
 
-    @Override
-    protected void updateGame(int round) throws GameOverException {
-        newTroops.clear();
-        newBombs.clear();
+    /**
+     * Struct-of-arrays game core, used by the "soa" engine mode and as a forward model by search bots. Factories, troops
+     * and bombs live in parallel primitive arrays indexed by factory index and player id, so a turn runs without
+     * allocation once the arrays have grown to the game's peak troop count. Arrived entities are removed by an in-place
+     * stable compaction, which keeps the order in which troops and bombs are sent to the players identical to the
+     * object engine. The "soa" engine mode is not meant as a faster referee: it plays the games of the referee on the
+     * forward model, so that the model is checked against the rules of the object engine.
+     * <p>
+     * A search preallocates its simulations once and resets them with copyFrom, then plays turns with step. Orders from a
+     * factory that the player does not own are skipped, as the referee never plays them: the parser makes the player lose.
+     */
+    static class Simulation {
+        private static final int NEUTRAL = -1;
+        private static final int INITIAL_CAPACITY = 64;
 
-        // ---
-        // Move troops and bombs
-        // ---
-        for (Troop troop : troops) {
-            troop.move();
-        }
-        for (Bomb bomb : bombs) {
-            bomb.move();
+        private final int factoryCount;
+        private final int[] distances;
+        private final int[] factoryOwner;
+        private final int[] factoryUnits;
+        private final int[] factoryProduction;
+        private final int[] factoryDisabled;
+        private final int[] unitsReadyToFight;
+
+        private int troopCount;
+        private int newTroopStart;
+        private int[] troopId;
+        private int[] troopOwner;
+        private int[] troopSource;
+        private int[] troopDestination;
+        private int[] troopUnits;
+        private int[] troopRemainingTurns;
+
+        private int bombCount;
+        private int newBombStart;
+        private int[] bombId;
+        private int[] bombOwner;
+        private int[] bombSource;
+        private int[] bombDestination;
+        private int[] bombRemainingTurns;
+
+        // Index of the troop and of the bomb sent this turn on each route (src * factoryCount + dst), valid between
+        // beginTurn and endTurn when their stamp is the current one, so that they are never cleared
+        private final int[] newTroopByRoute;
+        private final int[] newTroopRouteStamps;
+        private final int[] newBombByRoute;
+        private final int[] newBombRouteStamps;
+        private int routeStamp = 1;
+
+        private final int[] remainingBombs;
+        private final int[] scores;
+        // Same as Player.unitCount and Player.productionRate
+        private final int[] unitCounts;
+        private final int[] productionRates;
+        private int turn;
+        private long hash;
+        private int nextEntityId;
+        private ToolTipListener toolTipListener;
+        private TurnMetrics metrics;
+
+        private Simulation(int factoryCount, int[] distances, int playerCount) {
+            this.factoryCount = factoryCount;
+            this.distances = distances;
+            this.factoryOwner = new int[factoryCount];
+            this.factoryUnits = new int[factoryCount];
+            this.factoryProduction = new int[factoryCount];
+            this.factoryDisabled = new int[factoryCount];
+            this.unitsReadyToFight = new int[2 * factoryCount];
+
+            this.troopId = new int[INITIAL_CAPACITY];
+            this.troopOwner = new int[INITIAL_CAPACITY];
+            this.troopSource = new int[INITIAL_CAPACITY];
+            this.troopDestination = new int[INITIAL_CAPACITY];
+            this.troopUnits = new int[INITIAL_CAPACITY];
+            this.troopRemainingTurns = new int[INITIAL_CAPACITY];
+
+            this.bombId = new int[INITIAL_CAPACITY];
+            this.bombOwner = new int[INITIAL_CAPACITY];
+            this.bombSource = new int[INITIAL_CAPACITY];
+            this.bombDestination = new int[INITIAL_CAPACITY];
+            this.bombRemainingTurns = new int[INITIAL_CAPACITY];
+
+            this.newTroopByRoute = new int[factoryCount * factoryCount];
+            this.newTroopRouteStamps = new int[factoryCount * factoryCount];
+            this.newBombByRoute = new int[factoryCount * factoryCount];
+            this.newBombRouteStamps = new int[factoryCount * factoryCount];
+
+            this.remainingBombs = new int[playerCount];
+            this.scores = new int[playerCount];
+            this.unitCounts = new int[playerCount];
+            this.productionRates = new int[playerCount];
         }
 
-        // ---
-        // Decrease disabled countdown
-        // ---
-        for (Factory factory : factories) {
-            if (factory.disabled > 0) {
-                factory.disabled--;
+        public Simulation(Factory[] factories, int[] distances, Player[] players, int nextEntityId) {
+            this(factories.length, distances, players.length);
+            this.nextEntityId = nextEntityId;
+            for (int i = 0; i < factoryCount; i++) {
+                Factory factory = factories[i];
+                factoryOwner[i] = factory.owner == null ? NEUTRAL : factory.owner.id;
+                factoryUnits[i] = factory.unitCount;
+                factoryProduction[i] = factory.productionRate;
+                factoryDisabled[i] = factory.disabled;
+            }
+            for (Player player : players) {
+                remainingBombs[player.id] = player.remainingBombs;
+                scores[player.id] = player.score;
             }
+            countUnits();
+            hash = computeHash();
         }
 
-        // ---
-        // Execute orders
-        // ---
-        for (Player player : players) {
-            // Send bombs
-            for (BombAction bombAction : player.lastBombActions) {
-                Bomb bomb = new Bomb(bombAction.src, bombAction.dst);
-                if (player.remainingBombs > 0 && bomb.findWithSameRouteInList(newBombs) == null) {
-                    newBombs.add(bomb);
-                    bombs.add(bomb);
-                    player.remainingBombs--;
-                    addToolTip(player.id, translate("BombAction", player.id, bombAction.src.id, bombAction.dst.id));
-                }
+        public Simulation(Simulation other) {
+            this(other.factoryCount, other.distances, other.scores.length);
+            copyFrom(other);
+        }
+
+        /**
+         * Reset this simulation to the state of another one of the same map, reusing the arrays of this simulation
+         */
+        public void copyFrom(Simulation other) {
+            if (other.factoryCount != factoryCount) {
+                throw new IllegalArgumentException("Cannot copy a simulation with " + other.factoryCount + " factories into one with " + factoryCount);
             }
+            System.arraycopy(other.factoryOwner, 0, factoryOwner, 0, factoryCount);
+            System.arraycopy(other.factoryUnits, 0, factoryUnits, 0, factoryCount);
+            System.arraycopy(other.factoryProduction, 0, factoryProduction, 0, factoryCount);
+            System.arraycopy(other.factoryDisabled, 0, factoryDisabled, 0, factoryCount);
 
-            // Send troops
-            for (MoveAction moveAction : player.lastMoveActions) {
-                int unitsToMove = Math.min(moveAction.src.unitCount, moveAction.units);
-                Troop troop = new Troop(moveAction.src, moveAction.dst, unitsToMove);
+            reserve(other.troopCount, other.bombCount);
+            troopCount = other.troopCount;
+            newTroopStart = other.newTroopStart;
+            System.arraycopy(other.troopId, 0, troopId, 0, troopCount);
+            System.arraycopy(other.troopOwner, 0, troopOwner, 0, troopCount);
+            System.arraycopy(other.troopSource, 0, troopSource, 0, troopCount);
+            System.arraycopy(other.troopDestination, 0, troopDestination, 0, troopCount);
+            System.arraycopy(other.troopUnits, 0, troopUnits, 0, troopCount);
+            System.arraycopy(other.troopRemainingTurns, 0, troopRemainingTurns, 0, troopCount);
 
-                if (unitsToMove > 0 && troop.findWithSameRouteInList(newBombs) == null) { // Forbid sending units with the same source and destination as a bomb
-                    moveAction.src.unitCount -= unitsToMove;
+            bombCount = other.bombCount;
+            newBombStart = other.newBombStart;
+            System.arraycopy(other.bombId, 0, bombId, 0, bombCount);
+            System.arraycopy(other.bombOwner, 0, bombOwner, 0, bombCount);
+            System.arraycopy(other.bombSource, 0, bombSource, 0, bombCount);
+            System.arraycopy(other.bombDestination, 0, bombDestination, 0, bombCount);
+            System.arraycopy(other.bombRemainingTurns, 0, bombRemainingTurns, 0, bombCount);
 
-                    Troop other = troop.findWithSameRouteInList(newTroops);
-                    if (other != null) {
-                        other.unitCount += unitsToMove;
-                    } else {
-                        troops.add(troop);
-                        newTroops.add(troop);
-                    }
-                }
+            System.arraycopy(other.remainingBombs, 0, remainingBombs, 0, remainingBombs.length);
+            System.arraycopy(other.scores, 0, scores, 0, scores.length);
+            System.arraycopy(other.unitCounts, 0, unitCounts, 0, unitCounts.length);
+            System.arraycopy(other.productionRates, 0, productionRates, 0, productionRates.length);
+            nextEntityId = other.nextEntityId;
+            turn = other.turn;
+            hash = other.hash;
+            indexNewEntities();
+        }
+
+        /**
+         * Play a turn with the same rules as Game.updateGame
+         * 
+         * @return true if the end of the game is reached
+         */
+        public boolean step(Orders orders0, Orders orders1) {
+            beginTurn();
+            executeOrders(0, orders0);
+            executeOrders(1, orders1);
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.ORDERS);
             }
+            return endTurn();
+        }
 
-            // Increase
-            for (IncAction incAction : player.lastIncActions) {
-                if (incAction.src.unitCount >= COST_INCREASE_PRODUCTION && incAction.src.productionRate < MAX_PRODUCTION_RATE) {
-                    incAction.src.productionRate++;
-                    incAction.src.unitCount -= COST_INCREASE_PRODUCTION;
-                    addToolTip(player.id, translate("IncAction", player.id, incAction.src.id));
+        private void executeOrders(int playerId, Orders orders) {
+            // Factory ids are their indexes, the tooltips use the same values as the object engine
+            for (int i = 0; i < orders.bombCount; i++) {
+                if (sendBomb(playerId, orders.bombSource[i], orders.bombDestination[i]) && toolTipListener != null) {
+                    toolTipListener.onToolTip(playerId, "BombAction", playerId, orders.bombSource[i], orders.bombDestination[i]);
+                }
+            }
+            for (int i = 0; i < orders.moveCount; i++) {
+                sendTroop(playerId, orders.moveSource[i], orders.moveDestination[i], orders.moveUnits[i]);
+            }
+            for (int i = 0; i < orders.incCount; i++) {
+                if (increase(playerId, orders.incSource[i]) && toolTipListener != null) {
+                    toolTipListener.onToolTip(playerId, "IncAction", playerId, orders.incSource[i]);
                 }
             }
         }
 
-        // ---
-        // Create new units
-        // ---
-        for (Factory factory : factories) {
-            if (factory.owner != null) {
-                factory.unitCount += factory.getCurrentProductionRate();
-            }
+        public void setToolTipListener(ToolTipListener toolTipListener) {
+            this.toolTipListener = toolTipListener;
         }
 
-        // ---
-        // Solve battles
-        // ---
-        for (Factory factory : factories) {
-            factory.unitsReadyToFight[0] = factory.unitsReadyToFight[1] = 0;
+        /**
+         * Time the phases of the turns played by step, in a section started by the caller
+         */
+        public void setMetrics(TurnMetrics metrics) {
+            this.metrics = metrics;
         }
-        for (Iterator<Troop> it = troops.iterator(); it.hasNext();) {
-            Troop troop = it.next();
-            if (troop.remainingTurns <= 0) {
-                troop.destination.unitsReadyToFight[troop.owner.id] += troop.unitCount;
-                it.remove();
-            }
+
+        public int getFactoryCount() {
+            return factoryCount;
         }
-        for (Factory factory : factories) {
-            // Units from both players fight first
-            int units = Math.min(factory.unitsReadyToFight[0], factory.unitsReadyToFight[1]);
-            factory.unitsReadyToFight[0] -= units;
-            factory.unitsReadyToFight[1] -= units;
 
-            // Remaining units fight on the factory
-            for (Player player : players) {
-                if (factory.owner == player) { // Allied
-                    factory.unitCount += factory.unitsReadyToFight[player.id];
-                } else { // Opponent
-                    if (factory.unitsReadyToFight[player.id] > factory.unitCount) {
-                        factory.owner = player;
-                        factory.unitCount = factory.unitsReadyToFight[player.id] - factory.unitCount;
-                    } else {
-                        factory.unitCount -= factory.unitsReadyToFight[player.id];
-                    }
-                }
-            }
+        /**
+         * @return the id of the player owning the factory, or -1 for a neutral factory
+         */
+        public int getOwner(int factory) {
+            return factoryOwner[factory];
         }
 
-        // ---
-        // Solve bombs
-        // ---
-        for (Iterator<Bomb> it = bombs.iterator(); it.hasNext();) {
-            Bomb bomb = it.next();
-            if (bomb.remainingTurns <= 0) {
-                bomb.explode();
-                it.remove();
-            }
+        public int getUnitCount(int factory) {
+            return factoryUnits[factory];
         }
 
-        // ---
-        // Update score
-        // ---
-        for (Player player : players) {
-            player.score = 0;
+        public int getProductionRate(int factory) {
+            return factoryProduction[factory];
         }
-        for (Factory factory : factories) {
-            if (factory.owner != null) {
-                factory.owner.score += factory.unitCount;
-            }
+
+        public int getDisabled(int factory) {
+            return factoryDisabled[factory];
         }
-        for (Troop troop : troops) {
-            if (troop.owner != null) {
-                troop.owner.score += troop.unitCount;
-            }
+
+        public int getTroopCount() {
+            return troopCount;
         }
 
-        // ---
-        // Check end conditions
-        // ---
-        boolean gameOver = false;
-        for (Player player : players) {
-            if (player.score == 0) {
-                int production = 0;
-                for (Factory factory : factories) {
-                    if (factory.owner == player) {
-                        production += factory.productionRate;
-                    }
-                }
-                if (production == 0) {
-                    gameOver = true;
-                } else {
-                    // Keep playing until this player has produced some units
-                    gameOver = false;
-                    break;
-                }
-            }
+        public int getTroopOwner(int troop) {
+            return troopOwner[troop];
         }
 
-        if (gameOver) {
-            throw new GameOverException("endReached");
+        public int getTroopSource(int troop) {
+            return troopSource[troop];
         }
-    }
 
-    @Override
-    protected void populateMessages(Properties p) {
-        p.put("endReached", "End reached");
-    }
+        public int getTroopDestination(int troop) {
+            return troopDestination[troop];
+        }
 
-    @Override
-    protected String[] getInitDataForView() {
-        List<String> data = new ArrayList<>();
-        data.add(WIDTH + " " + HEIGHT + " " + factories.length + " " + BOMBS_PER_PLAYER);
-        for (Factory factory : factories) {
-            data.add(factory.toViewStringInit());
+        public int getTroopUnitCount(int troop) {
+            return troopUnits[troop];
         }
-        data.add(0, String.valueOf(data.size() + 1));
-        return data.toArray(new String[data.size()]);
-    }
 
-    @Override
-    protected String[] getFrameDataForView(int round, int frame, boolean keyFrame) {
-        List<String> data = new ArrayList<>();
-        // Pass the scores and messages
-        for (int playerIdx = 0; playerIdx < players.length; ++playerIdx) {
-            String playerInfo = String.valueOf(getScore(playerIdx)) + " " + players[playerIdx].remainingBombs;
-            if (players[playerIdx].message != null) {
-                playerInfo += " " + players[playerIdx].message;
-            }
-            data.add(playerInfo);
+        public int getTroopRemainingTurns(int troop) {
+            return troopRemainingTurns[troop];
+        }
+
+        public int getBombCount() {
+            return bombCount;
+        }
+
+        public int getBombOwner(int bomb) {
+            return bombOwner[bomb];
+        }
+
+        public int getBombSource(int bomb) {
+            return bombSource[bomb];
+        }
+
+        public int getBombDestination(int bomb) {
+            return bombDestination[bomb];
+        }
+
+        public int getBombRemainingTurns(int bomb) {
+            return bombRemainingTurns[bomb];
         }
 
-        // Pass the troops
-        List<String> troopData = new ArrayList<>();
-        for (Troop troop : newTroops) {
-            troopData.add(troop.toViewString());
+        public int getRemainingBombs(int playerId) {
+            return remainingBombs[playerId];
         }
-        data.add(String.valueOf(troopData.size()));
-        data.addAll(troopData);
 
-        // Pass the bombs
-        List<String> bombData = new ArrayList<>();
-        for (Bomb bomb : newBombs) {
-            bombData.add(bomb.toViewString());
+        public int getScore(int playerId) {
+            return scores[playerId];
         }
-        data.add(String.valueOf(bombData.size()));
-        data.addAll(bombData);
 
-        // Pass the factories
-        for (Factory factory : factories) {
-            data.add(factory.toViewString());
+        public int getDistance(int src, int dst) {
+            return distances[src * factoryCount + dst];
         }
-        return data.toArray(new String[data.size()]);
+
+        /**
+         * Forget the entities sent on the previous turn, move troops and bombs and decrease the disabled countdowns
+         */
+        public void beginTurn() {
+            newTroopStart = troopCount;
+            newBombStart = bombCount;
+            nextRouteStamp();
+
+            // The arrival turns of the entities do not change, so their hashes neither
+            hash ^= Zobrist.turn(turn) ^ Zobrist.turn(turn + 1);
+            turn++;
+            for (int i = 0; i < troopCount; i++) {
+                troopRemainingTurns[i]--;
+            }
+            for (int i = 0; i < bombCount; i++) {
+                bombRemainingTurns[i]--;
+            }
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.MOVE);
+            }
+
+            for (int i = 0; i < factoryCount; i++) {
+                if (factoryDisabled[i] > 0) {
+                    setDisabled(i, factoryDisabled[i] - 1);
+                }
+            }
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.DISABLED_COUNTDOWN);
+            }
+        }
+
+        /**
+         * @return true if the bomb has been sent
+         */
+        public boolean sendBomb(int playerId, int src, int dst) {
+            if (factoryOwner[src] != playerId) {
+                return false;
+            }
+            int id = nextEntityId++;
+            if (remainingBombs[playerId] > 0 && findNewBomb(src, dst) < 0) {
+                addBomb(id, playerId, src, dst, getDistance(src, dst));
+                indexNewBomb(bombCount - 1);
+                hash ^= bombHash(bombCount - 1);
+                hash ^= Zobrist.remainingBombs(playerId, remainingBombs[playerId]) ^ Zobrist.remainingBombs(playerId, remainingBombs[playerId] - 1);
+                remainingBombs[playerId]--;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return true if the troop has been sent, or its units added to a troop sent this turn on the same route
+         */
+        public boolean sendTroop(int playerId, int src, int dst, int units) {
+            if (factoryOwner[src] != playerId) {
+                return false;
+            }
+            int id = nextEntityId++;
+            int unitsToMove = Math.min(factoryUnits[src], units);
+            if (unitsToMove > 0 && findNewBomb(src, dst) < 0) { // Forbid sending units with the same source and destination as a bomb
+                setUnits(src, factoryUnits[src] - unitsToMove);
+
+                int other = findNewTroop(src, dst);
+                if (other >= 0) {
+                    hash ^= troopHash(other);
+                    troopUnits[other] += unitsToMove;
+                    hash ^= troopHash(other);
+                } else {
+                    addTroop(id, playerId, src, dst, unitsToMove, getDistance(src, dst));
+                    indexNewTroop(troopCount - 1);
+                    hash ^= troopHash(troopCount - 1);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return true if the production rate has been increased
+         */
+        public boolean increase(int playerId, int src) {
+            if (factoryOwner[src] == playerId && factoryUnits[src] >= COST_INCREASE_PRODUCTION
+                    && factoryProduction[src] < MAX_PRODUCTION_RATE) {
+                setProduction(src, factoryProduction[src] + 1);
+                setUnits(src, factoryUnits[src] - COST_INCREASE_PRODUCTION);
+                productionRates[playerId]++;
+                unitCounts[playerId] -= COST_INCREASE_PRODUCTION;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Create new units, solve battles and bombs and update the scores
+         * 
+         * @return true if the end of the game is reached
+         */
+        public boolean endTurn() {
+            // ---
+            // Create new units
+            // ---
+            for (int i = 0; i < factoryCount; i++) {
+                if (factoryOwner[i] != NEUTRAL && factoryDisabled[i] == 0) {
+                    setUnits(i, factoryUnits[i] + factoryProduction[i]);
+                    unitCounts[factoryOwner[i]] += factoryProduction[i];
+                }
+            }
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.PRODUCTION);
+            }
+
+            // ---
+            // Solve battles
+            // ---
+            Arrays.fill(unitsReadyToFight, 0);
+            int kept = 0;
+            int newStart = troopCount;
+            for (int i = 0; i < troopCount; i++) {
+                if (i == newTroopStart) {
+                    newStart = kept;
+                }
+                if (troopRemainingTurns[i] <= 0) {
+                    hash ^= troopHash(i);
+                    if (troopOwner[i] != NEUTRAL) {
+                        unitsReadyToFight[2 * troopDestination[i] + troopOwner[i]] += troopUnits[i];
+                        unitCounts[troopOwner[i]] -= troopUnits[i];
+                    }
+                } else {
+                    if (kept != i) {
+                        copyTroop(i, kept);
+                    }
+                    kept++;
+                }
+            }
+            newTroopStart = Math.min(newStart, kept);
+            troopCount = kept;
+
+            for (int i = 0; i < factoryCount; i++) {
+                // Units from both players fight first
+                int units = Math.min(unitsReadyToFight[2 * i], unitsReadyToFight[2 * i + 1]);
+                unitsReadyToFight[2 * i] -= units;
+                unitsReadyToFight[2 * i + 1] -= units;
+
+                // Remaining units fight on the factory
+                for (int player = 0; player < 2; player++) {
+                    int ready = unitsReadyToFight[2 * i + player];
+                    int owner = factoryOwner[i];
+                    if (owner == player) { // Allied
+                        setUnits(i, factoryUnits[i] + ready);
+                        unitCounts[player] += ready;
+                    } else { // Opponent
+                        if (ready > factoryUnits[i]) {
+                            if (owner != NEUTRAL) {
+                                unitCounts[owner] -= factoryUnits[i];
+                                productionRates[owner] -= factoryProduction[i];
+                            }
+                            setOwner(i, player);
+                            setUnits(i, ready - factoryUnits[i]);
+                            unitCounts[player] += factoryUnits[i];
+                            productionRates[player] += factoryProduction[i];
+                        } else {
+                            setUnits(i, factoryUnits[i] - ready);
+                            if (owner != NEUTRAL) {
+                                unitCounts[owner] -= ready;
+                            }
+                        }
+                    }
+                }
+            }
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.BATTLES);
+            }
+
+            // ---
+            // Solve bombs
+            // ---
+            kept = 0;
+            newStart = bombCount;
+            for (int i = 0; i < bombCount; i++) {
+                if (i == newBombStart) {
+                    newStart = kept;
+                }
+                if (bombRemainingTurns[i] <= 0) {
+                    hash ^= bombHash(i);
+                    int destination = bombDestination[i];
+                    int damage = Math.min(factoryUnits[destination], Math.max(10, factoryUnits[destination] / 2));
+                    setUnits(destination, factoryUnits[destination] - damage);
+                    setDisabled(destination, DAMAGE_DURATION);
+                    if (factoryOwner[destination] != NEUTRAL) {
+                        unitCounts[factoryOwner[destination]] -= damage;
+                    }
+                } else {
+                    if (kept != i) {
+                        copyBomb(i, kept);
+                    }
+                    kept++;
+                }
+            }
+            newBombStart = Math.min(newStart, kept);
+            bombCount = kept;
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.BOMBS);
+            }
+
+            // ---
+            // Update score
+            // ---
+            System.arraycopy(unitCounts, 0, scores, 0, scores.length);
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.SCORE);
+            }
+
+            // ---
+            // Check end conditions
+            // ---
+            boolean gameOver = false;
+            for (int player = 0; player < scores.length; player++) {
+                if (scores[player] == 0) {
+                    if (productionRates[player] == 0) {
+                        gameOver = true;
+                    } else {
+                        // Keep playing until this player has produced some units
+                        gameOver = false;
+                        break;
+                    }
+                }
+            }
+            return gameOver;
+        }
+
+        /**
+         * Same as Player.setDead: the player loses its factories and troops
+         */
+        public void setDead(int playerId) {
+            for (int i = 0; i < factoryCount; i++) {
+                if (factoryOwner[i] == playerId) {
+                    setOwner(i, NEUTRAL);
+                }
+            }
+            int kept = 0;
+            int newStart = troopCount;
+            for (int i = 0; i < troopCount; i++) {
+                if (i == newTroopStart) {
+                    newStart = kept;
+                }
+                if (troopOwner[i] != playerId) {
+                    if (kept != i) {
+                        copyTroop(i, kept);
+                    }
+                    kept++;
+                } else {
+                    hash ^= troopHash(i);
+                }
+            }
+            newTroopStart = Math.min(newStart, kept);
+            troopCount = kept;
+            scores[playerId] = 0;
+            unitCounts[playerId] = 0;
+            productionRates[playerId] = 0;
+        }
+
+        /**
+         * Compute the unit count and production rate of each player from scratch. The turns then keep them up to date.
+         */
+        private void countUnits() {
+            Arrays.fill(unitCounts, 0);
+            Arrays.fill(productionRates, 0);
+            for (int i = 0; i < factoryCount; i++) {
+                if (factoryOwner[i] != NEUTRAL) {
+                    unitCounts[factoryOwner[i]] += factoryUnits[i];
+                    productionRates[factoryOwner[i]] += factoryProduction[i];
+                }
+            }
+            for (int i = 0; i < troopCount; i++) {
+                if (troopOwner[i] != NEUTRAL) {
+                    unitCounts[troopOwner[i]] += troopUnits[i];
+                }
+            }
+        }
+
+        /**
+         * @return the 64 bits Zobrist hash of the state: factories, troops and bombs in flight, remaining bombs and
+         *         turn. It is kept up to date by every change of the state. Troops and bombs are hashed with their
+         *         arrival turn, which does not change while they move.
+         */
+        public long getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the hash of the state computed from scratch, equal to getHash
+         */
+        public long computeHash() {
+            long hash = Zobrist.turn(turn);
+            for (int i = 0; i < factoryCount; i++) {
+                hash ^= Zobrist.owner(i, factoryOwner[i]) ^ Zobrist.units(i, factoryUnits[i]) ^ Zobrist.production(i, factoryProduction[i])
+                        ^ Zobrist.disabled(i, factoryDisabled[i]);
+            }
+            for (int i = 0; i < troopCount; i++) {
+                hash ^= troopHash(i);
+            }
+            for (int i = 0; i < bombCount; i++) {
+                hash ^= bombHash(i);
+            }
+            for (int i = 0; i < remainingBombs.length; i++) {
+                hash ^= Zobrist.remainingBombs(i, remainingBombs[i]);
+            }
+            return hash;
+        }
+
+        private long troopHash(int troop) {
+            return Zobrist.troop(troopOwner[troop], troopSource[troop], troopDestination[troop], troopUnits[troop], turn + troopRemainingTurns[troop]);
+        }
+
+        private long bombHash(int bomb) {
+            return Zobrist.bomb(bombOwner[bomb], bombSource[bomb], bombDestination[bomb], turn + bombRemainingTurns[bomb]);
+        }
+
+        private void setOwner(int factory, int owner) {
+            hash ^= Zobrist.owner(factory, factoryOwner[factory]) ^ Zobrist.owner(factory, owner);
+            factoryOwner[factory] = owner;
+        }
+
+        private void setUnits(int factory, int units) {
+            hash ^= Zobrist.units(factory, factoryUnits[factory]) ^ Zobrist.units(factory, units);
+            factoryUnits[factory] = units;
+        }
+
+        private void setProduction(int factory, int production) {
+            hash ^= Zobrist.production(factory, factoryProduction[factory]) ^ Zobrist.production(factory, production);
+            factoryProduction[factory] = production;
+        }
+
+        private void setDisabled(int factory, int disabled) {
+            hash ^= Zobrist.disabled(factory, factoryDisabled[factory]) ^ Zobrist.disabled(factory, disabled);
+            factoryDisabled[factory] = disabled;
+        }
+
+        private void addTroop(int id, int owner, int src, int dst, int units, int remainingTurns) {
+            if (troopCount == troopId.length) {
+                growTroops();
+            }
+            troopId[troopCount] = id;
+            troopOwner[troopCount] = owner;
+            troopSource[troopCount] = src;
+            troopDestination[troopCount] = dst;
+            troopUnits[troopCount] = units;
+            troopRemainingTurns[troopCount] = remainingTurns;
+            troopCount++;
+        }
+
+        private void addBomb(int id, int owner, int src, int dst, int remainingTurns) {
+            if (bombCount == bombId.length) {
+                growBombs();
+            }
+            bombId[bombCount] = id;
+            bombOwner[bombCount] = owner;
+            bombSource[bombCount] = src;
+            bombDestination[bombCount] = dst;
+            bombRemainingTurns[bombCount] = remainingTurns;
+            bombCount++;
+        }
+
+        /**
+         * Grow the arrays of the troops and bombs to hold the given counts
+         */
+        private void reserve(int troops, int bombs) {
+            while (troopId.length < troops) {
+                growTroops();
+            }
+            while (bombId.length < bombs) {
+                growBombs();
+            }
+        }
+
+        /**
+         * Index the troops and bombs sent this turn by route, once their arrays have been replaced
+         */
+        private void indexNewEntities() {
+            nextRouteStamp();
+            for (int i = newTroopStart; i < troopCount; i++) {
+                indexNewTroop(i);
+            }
+            for (int i = newBombStart; i < bombCount; i++) {
+                indexNewBomb(i);
+            }
+        }
+
+        /**
+         * Forget the routes of the entities sent before, by making their stamps obsolete
+         */
+        private void nextRouteStamp() {
+            if (++routeStamp == Integer.MAX_VALUE) {
+                Arrays.fill(newTroopRouteStamps, 0);
+                Arrays.fill(newBombRouteStamps, 0);
+                routeStamp = 1;
+            }
+        }
+
+        private void indexNewTroop(int troop) {
+            int route = troopSource[troop] * factoryCount + troopDestination[troop];
+            newTroopByRoute[route] = troop;
+            newTroopRouteStamps[route] = routeStamp;
+        }
+
+        private void indexNewBomb(int bomb) {
+            int route = bombSource[bomb] * factoryCount + bombDestination[bomb];
+            newBombByRoute[route] = bomb;
+            newBombRouteStamps[route] = routeStamp;
+        }
+
+        private int findNewTroop(int src, int dst) {
+            int route = src * factoryCount + dst;
+            return newTroopRouteStamps[route] == routeStamp ? newTroopByRoute[route] : -1;
+        }
+
+        private int findNewBomb(int src, int dst) {
+            int route = src * factoryCount + dst;
+            return newBombRouteStamps[route] == routeStamp ? newBombByRoute[route] : -1;
+        }
+
+        private void copyTroop(int from, int to) {
+            troopId[to] = troopId[from];
+            troopOwner[to] = troopOwner[from];
+            troopSource[to] = troopSource[from];
+            troopDestination[to] = troopDestination[from];
+            troopUnits[to] = troopUnits[from];
+            troopRemainingTurns[to] = troopRemainingTurns[from];
+        }
+
+        private void copyBomb(int from, int to) {
+            bombId[to] = bombId[from];
+            bombOwner[to] = bombOwner[from];
+            bombSource[to] = bombSource[from];
+            bombDestination[to] = bombDestination[from];
+            bombRemainingTurns[to] = bombRemainingTurns[from];
+        }
+
+        private void growTroops() {
+            int capacity = 2 * troopId.length;
+            troopId = Arrays.copyOf(troopId, capacity);
+            troopOwner = Arrays.copyOf(troopOwner, capacity);
+            troopSource = Arrays.copyOf(troopSource, capacity);
+            troopDestination = Arrays.copyOf(troopDestination, capacity);
+            troopUnits = Arrays.copyOf(troopUnits, capacity);
+            troopRemainingTurns = Arrays.copyOf(troopRemainingTurns, capacity);
+        }
+
+        private void growBombs() {
+            int capacity = 2 * bombId.length;
+            bombId = Arrays.copyOf(bombId, capacity);
+            bombOwner = Arrays.copyOf(bombOwner, capacity);
+            bombSource = Arrays.copyOf(bombSource, capacity);
+            bombDestination = Arrays.copyOf(bombDestination, capacity);
+            bombRemainingTurns = Arrays.copyOf(bombRemainingTurns, capacity);
+        }
+    }
+
+    /**
+     * Zobrist keys of the state components hashed by the Simulation. Unit counts and turns are not bounded, so the key of
+     * a component value is derived by a SplitMix64 mix instead of being read from a table of random numbers.
+     */
+    static class Zobrist {
+        private static final long TURN = 1;
+        private static final long FACTORY_OWNER = 2;
+        private static final long FACTORY_UNITS = 3;
+        private static final long FACTORY_PRODUCTION = 4;
+        private static final long FACTORY_DISABLED = 5;
+        private static final long REMAINING_BOMBS = 6;
+        private static final long TROOP = 7;
+        private static final long BOMB = 8;
+
+        static long turn(int turn) {
+            return key(TURN, 0, turn);
+        }
+
+        static long owner(int factory, int owner) {
+            return key(FACTORY_OWNER, factory, owner);
+        }
+
+        static long units(int factory, int units) {
+            return key(FACTORY_UNITS, factory, units);
+        }
+
+        static long production(int factory, int production) {
+            return key(FACTORY_PRODUCTION, factory, production);
+        }
+
+        static long disabled(int factory, int disabled) {
+            return key(FACTORY_DISABLED, factory, disabled);
+        }
+
+        static long remainingBombs(int player, int remainingBombs) {
+            return key(REMAINING_BOMBS, player, remainingBombs);
+        }
+
+        /**
+         * Two troops never share a route and an arrival turn, so their keys do not cancel out. The fields are packed in a
+         * single mixed value: they only overlap past 4096 turns or 64 factories, where keys may collide.
+         */
+        static long troop(int owner, int src, int dst, int units, int arrivalTurn) {
+            return mix(route(TROOP, owner, src, dst) ^ (long) arrivalTurn << 32 ^ units & 0xFFFFFFFFL);
+        }
+
+        static long bomb(int owner, int src, int dst, int arrivalTurn) {
+            return mix(route(BOMB, owner, src, dst) ^ arrivalTurn & 0xFFFFFFFFL);
+        }
+
+        private static long route(long component, int owner, int src, int dst) {
+            return component << 60 ^ (long) (owner + 1) << 56 ^ (long) src << 50 ^ (long) dst << 44;
+        }
+
+        private static long key(long component, int index, int value) {
+            return mix(component << 56 ^ (long) index << 32 ^ value & 0xFFFFFFFFL);
+        }
+
+        private static long mix(long z) {
+            z += 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * Bounded cache of evaluated positions keyed by Simulation.getHash, shared by the threads of a parallel search. The
+     * table is direct-mapped: an entry replaces the previous one of its slot. Slots are guarded by a fixed number of
+     * locks, so that threads rarely wait for each other.
+     */
+    static class TranspositionCache<V> {
+        private final long[] hashes;
+        private final Object[] values;
+        private final Object[] locks;
+        private final int mask;
+        private final int lockMask;
+
+        /**
+         * @param capacity
+         *            rounded up to a power of two
+         * @param concurrency
+         *            number of locks, rounded up to a power of two
+         */
+        public TranspositionCache(int capacity, int concurrency) {
+            int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+            int lockCount = Integer.highestOneBit(Math.max(concurrency - 1, 1)) << 1;
+            this.hashes = new long[size];
+            this.values = new Object[size];
+            this.locks = new Object[lockCount];
+            for (int i = 0; i < lockCount; i++) {
+                locks[i] = new Object();
+            }
+            this.mask = size - 1;
+            this.lockMask = lockCount - 1;
+        }
+
+        /**
+         * @return the value stored for the hash, or null
+         */
+        @SuppressWarnings("unchecked")
+        public V get(long hash) {
+            int slot = (int) hash & mask;
+            synchronized (locks[slot & lockMask]) {
+                return hashes[slot] == hash ? (V) values[slot] : null;
+            }
+        }
+
+        public void put(long hash, V value) {
+            int slot = (int) hash & mask;
+            synchronized (locks[slot & lockMask]) {
+                hashes[slot] = hash;
+                values[slot] = value;
+            }
+        }
+
+        public int getCapacity() {
+            return values.length;
+        }
+    }
+
+    /**
+     * Simulation states stored in fixed-size slots of off-heap memory, for searches keeping millions of nodes. The states
+     * put no load on the garbage collector, and their memory is allocated once and then reused. Slots are allocated one
+     * after another and all freed at once by reset. A state is written to a slot by store and read back by load. Copying
+     * a slot to another one is a copy of its memory.
+     * <p>
+     * The memory is a list of direct buffers of at most PAGE_BYTES each, allocated as the slots grow, so an arena can
+     * hold more than 2GB. Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+     * A slot holds the factories, at most maxTroops troops, every bomb, the players' counters, the turn, the next entity
+     * id and the Zobrist hash. An arena is not thread-safe.
+     */
+    static class StateArena {
+        private static final int PAGE_BYTES = 1 << 26;
+
+        // Header of a slot, then PLAYER_INTS per player: remaining bombs, score, unit count and production rate
+        private static final int TROOP_COUNT = 0;
+        private static final int NEW_TROOP_START = 1;
+        private static final int BOMB_COUNT = 2;
+        private static final int NEW_BOMB_START = 3;
+        private static final int NEXT_ENTITY_ID = 4;
+        private static final int TURN = 5;
+        private static final int HASH = 6;
+        private static final int PLAYERS = 8;
+        private static final int PLAYER_INTS = 4;
+
+        private final Simulation scratch;
+        private final int factoryCount;
+        private final int playerCount;
+        private final int maxTroops;
+        private final int maxBombs;
+        // Offsets of the sections of a slot, in ints. Owners, production rates and disabled countdowns of the
+        // factories, and owners, sources, destinations and remaining turns of the entities, are packed by bytes.
+        private final int factories;
+        private final int troops;
+        private final int bombs;
+        private final int slotInts;
+        private final int slotsPerPage;
+        private final List<IntBuffer> pages = new ArrayList<>();
+        // Second view of each page, read by copy while the first one is written
+        private final List<IntBuffer> sources = new ArrayList<>();
+        private final int[] packed;
+        private int slotCount;
+
+        /**
+         * @param template
+         *            a state of the map of the stored states
+         * @param maxTroops
+         *            the number of troops in flight that a slot can hold
+         */
+        public StateArena(Simulation template, int maxTroops) {
+            this.scratch = new Simulation(template);
+            this.factoryCount = template.factoryCount;
+            this.playerCount = template.scores.length;
+            this.maxTroops = maxTroops;
+            this.maxBombs = playerCount * BOMBS_PER_PLAYER;
+            this.factories = PLAYERS + PLAYER_INTS * playerCount;
+            this.troops = factories + 2 * factoryCount;
+            this.bombs = troops + 3 * maxTroops;
+            this.slotInts = bombs + 2 * maxBombs;
+            this.slotsPerPage = Math.max(1, PAGE_BYTES / 4 / slotInts);
+            this.packed = new int[Math.max(Math.max(factoryCount, maxTroops), maxBombs)];
+            scratch.reserve(maxTroops, maxBombs);
+        }
+
+        /**
+         * @return a new slot, whose content is undefined until a state is stored or copied into it
+         */
+        public int allocate() {
+            if (slotCount / slotsPerPage == pages.size()) {
+                IntBuffer page = ByteBuffer.allocateDirect(slotsPerPage * slotInts * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+                pages.add(page);
+                sources.add(page.duplicate());
+            }
+            return slotCount++;
+        }
+
+        /**
+         * Free every slot, keeping the memory for the next ones
+         */
+        public void reset() {
+            slotCount = 0;
+        }
+
+        public int getSlotCount() {
+            return slotCount;
+        }
+
+        public int getSlotBytes() {
+            return 4 * slotInts;
+        }
+
+        /**
+         * @return the off-heap memory allocated by the arena, in bytes
+         */
+        public long getMemoryBytes() {
+            return (long) pages.size() * slotsPerPage * slotInts * 4;
+        }
+
+        public void store(int slot, Simulation state) {
+            if (state.factoryCount != factoryCount) {
+                throw new IllegalArgumentException("Cannot store a simulation with " + state.factoryCount + " factories into an arena of "
+                        + factoryCount);
+            }
+            if (state.troopCount > maxTroops) {
+                throw new IllegalStateException("Cannot store " + state.troopCount + " troops into slots of " + maxTroops);
+            }
+            IntBuffer page = getPage(slot);
+            int base = getBase(slot);
+            page.put(base + TROOP_COUNT, state.troopCount);
+            page.put(base + NEW_TROOP_START, state.newTroopStart);
+            page.put(base + BOMB_COUNT, state.bombCount);
+            page.put(base + NEW_BOMB_START, state.newBombStart);
+            page.put(base + NEXT_ENTITY_ID, state.nextEntityId);
+            page.put(base + TURN, state.turn);
+            page.put(base + HASH, (int) state.hash);
+            page.put(base + HASH + 1, (int) (state.hash >>> 32));
+            for (int i = 0; i < playerCount; i++) {
+                int player = base + PLAYERS + PLAYER_INTS * i;
+                page.put(player, state.remainingBombs[i]);
+                page.put(player + 1, state.scores[i]);
+                page.put(player + 2, state.unitCounts[i]);
+                page.put(player + 3, state.productionRates[i]);
+            }
+
+            for (int i = 0; i < factoryCount; i++) {
+                packed[i] = pack(state.factoryOwner[i], state.factoryProduction[i], state.factoryDisabled[i], 0);
+            }
+            page.position(base + factories);
+            page.put(packed, 0, factoryCount);
+            page.put(state.factoryUnits, 0, factoryCount);
+
+            int troopCount = state.troopCount;
+            for (int i = 0; i < troopCount; i++) {
+                packed[i] = pack(state.troopOwner[i], state.troopSource[i], state.troopDestination[i], state.troopRemainingTurns[i]);
+            }
+            page.position(base + troops);
+            page.put(state.troopId, 0, troopCount);
+            page.position(base + troops + maxTroops);
+            page.put(packed, 0, troopCount);
+            page.position(base + troops + 2 * maxTroops);
+            page.put(state.troopUnits, 0, troopCount);
+
+            int bombCount = state.bombCount;
+            for (int i = 0; i < bombCount; i++) {
+                packed[i] = pack(state.bombOwner[i], state.bombSource[i], state.bombDestination[i], state.bombRemainingTurns[i]);
+            }
+            page.position(base + bombs);
+            page.put(state.bombId, 0, bombCount);
+            page.position(base + bombs + maxBombs);
+            page.put(packed, 0, bombCount);
+        }
+
+        /**
+         * Reset a simulation of the arena's map to the state of a slot, reusing the arrays of the simulation
+         */
+        public void load(int slot, Simulation state) {
+            if (state.factoryCount != factoryCount) {
+                throw new IllegalArgumentException("Cannot load a slot of an arena of " + factoryCount
+                        + " factories into a simulation with " + state.factoryCount);
+            }
+            IntBuffer page = getPage(slot);
+            int base = getBase(slot);
+            int troopCount = page.get(base + TROOP_COUNT);
+            int bombCount = page.get(base + BOMB_COUNT);
+            state.reserve(troopCount, bombCount);
+            state.troopCount = troopCount;
+            state.newTroopStart = page.get(base + NEW_TROOP_START);
+            state.bombCount = bombCount;
+            state.newBombStart = page.get(base + NEW_BOMB_START);
+            state.nextEntityId = page.get(base + NEXT_ENTITY_ID);
+            state.turn = page.get(base + TURN);
+            state.hash = page.get(base + HASH) & 0xFFFFFFFFL | (long) page.get(base + HASH + 1) << 32;
+            for (int i = 0; i < playerCount; i++) {
+                int player = base + PLAYERS + PLAYER_INTS * i;
+                state.remainingBombs[i] = page.get(player);
+                state.scores[i] = page.get(player + 1);
+                state.unitCounts[i] = page.get(player + 2);
+                state.productionRates[i] = page.get(player + 3);
+            }
+
+            page.position(base + factories);
+            page.get(packed, 0, factoryCount);
+            page.get(state.factoryUnits, 0, factoryCount);
+            for (int i = 0; i < factoryCount; i++) {
+                state.factoryOwner[i] = owner(packed[i]);
+                state.factoryProduction[i] = packed[i] >>> 8 & 0xFF;
+                state.factoryDisabled[i] = packed[i] >>> 16 & 0xFF;
+            }
+
+            page.position(base + troops);
+            page.get(state.troopId, 0, troopCount);
+            page.position(base + troops + maxTroops);
+            page.get(packed, 0, troopCount);
+            page.position(base + troops + 2 * maxTroops);
+            page.get(state.troopUnits, 0, troopCount);
+            for (int i = 0; i < troopCount; i++) {
+                state.troopOwner[i] = owner(packed[i]);
+                state.troopSource[i] = packed[i] >>> 8 & 0xFF;
+                state.troopDestination[i] = packed[i] >>> 16 & 0xFF;
+                state.troopRemainingTurns[i] = packed[i] >>> 24;
+            }
+
+            page.position(base + bombs);
+            page.get(state.bombId, 0, bombCount);
+            page.position(base + bombs + maxBombs);
+            page.get(packed, 0, bombCount);
+            for (int i = 0; i < bombCount; i++) {
+                state.bombOwner[i] = owner(packed[i]);
+                state.bombSource[i] = packed[i] >>> 8 & 0xFF;
+                state.bombDestination[i] = packed[i] >>> 16 & 0xFF;
+                state.bombRemainingTurns[i] = packed[i] >>> 24;
+            }
+            state.indexNewEntities();
+        }
+
+        /**
+         * Copy the state of a slot into another one
+         */
+        public void copy(int from, int to) {
+            IntBuffer target = getPage(to);
+            int targetBase = getBase(to);
+            getPage(from);
+            IntBuffer source = sources.get(from / slotsPerPage);
+            int sourceBase = getBase(from);
+            source.limit(sourceBase + slotInts);
+            source.position(sourceBase);
+            target.position(targetBase);
+            target.put(source);
+            source.limit(source.capacity());
+        }
+
+        /**
+         * Play a turn on the state of a slot, with the rules of Simulation.step
+         * 
+         * @return true if the end of the game is reached
+         */
+        public boolean step(int slot, Orders orders0, Orders orders1) {
+            load(slot, scratch);
+            boolean gameOver = scratch.step(orders0, orders1);
+            store(slot, scratch);
+            return gameOver;
+        }
+
+        public long getHash(int slot) {
+            IntBuffer page = getPage(slot);
+            int base = getBase(slot);
+            return page.get(base + HASH) & 0xFFFFFFFFL | (long) page.get(base + HASH + 1) << 32;
+        }
+
+        public int getScore(int slot, int playerId) {
+            return getPage(slot).get(getBase(slot) + PLAYERS + PLAYER_INTS * playerId + 1);
+        }
+
+        public int getTroopCount(int slot) {
+            return getPage(slot).get(getBase(slot) + TROOP_COUNT);
+        }
+
+        private IntBuffer getPage(int slot) {
+            if (slot < 0 || slot >= slotCount) {
+                throw new IndexOutOfBoundsException("Slot " + slot + " of " + slotCount);
+            }
+            return pages.get(slot / slotsPerPage);
+        }
+
+        private int getBase(int slot) {
+            return slot % slotsPerPage * slotInts;
+        }
+
+        /**
+         * Pack an owner, which may be NEUTRAL, and three values between 0 and 255
+         */
+        private static int pack(int owner, int value1, int value2, int value3) {
+            return owner + 1 | value1 << 8 | value2 << 16 | value3 << 24;
+        }
+
+        private static int owner(int packed) {
+            return (packed & 0xFF) - 1;
+        }
+    }
+
+    /**
+     * Single-pass tokenizer of the player outputs, working on the raw characters without regular expressions nor
+     * substrings. It accepts the same grammar as the former patterns:
+     * <ul>
+     * <li>actions are separated by a ";" surrounded by optional spaces and followed by a keyword,</li>
+     * <li>MOVE src dst units, BOMB src dst, INC src, WAIT and MSG message, keywords being case-insensitive,</li>
+     * <li>numbers have 1 to 8 digits, a single space follows the keyword and any whitespace separates the numbers.</li>
+     * </ul>
+     */
+    private static class ActionParser {
+        private static final int MOVE = 0;
+        private static final int BOMB = 1;
+        private static final int INC = 2;
+        private static final int WAIT = 3;
+        private static final int MSG = 4;
+        private static final int INVALID = -1;
+        private static final int MAX_DIGITS = 8;
+        private static final String[] KEYWORDS = { "MOVE", "BOMB", "INC", "WAIT", "MSG" };
+
+        private CharSequence line;
+        private int position;
+        private int actionStart;
+        private int actionEnd;
+
+        // Arguments of the last parsed action
+        private int src;
+        private int dst;
+        private int units;
+        private int messageStart;
+
+        // Result of the last readNumber
+        private int number;
+        private int numberEnd;
+
+        public void reset(CharSequence line) {
+            this.line = line;
+            this.position = 0;
+        }
+
+        public boolean hasNext() {
+            return position >= 0;
+        }
+
+        /**
+         * Parse the next action of the line
+         * 
+         * @return the action type, or INVALID
+         */
+        public int next() {
+            actionStart = position;
+            actionEnd = line.length();
+            position = -1;
+
+            for (int i = actionStart; i < line.length(); i++) {
+                if (line.charAt(i) == ';') {
+                    int next = skipWhitespaces(i + 1);
+                    if (keywordAt(next) >= 0) {
+                        // The separator also includes the whitespaces before the ";"
+                        int end = i;
+                        while (end > actionStart && isWhitespace(line.charAt(end - 1))) {
+                            end--;
+                        }
+                        actionEnd = end;
+                        position = next;
+                        break;
+                    }
+                }
+            }
+
+            return parseAction(actionStart, actionEnd);
+        }
+
+        /**
+         * @return the text of the last parsed action
+         */
+        public String getAction() {
+            return line.subSequence(actionStart, actionEnd).toString();
+        }
+
+        /**
+         * @return the trimmed message of the last MSG action, truncated to maxLength characters
+         */
+        public String getMessage(int maxLength) {
+            int start = messageStart;
+            int end = actionEnd;
+            while (start < end && line.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && line.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            return line.subSequence(start, Math.min(end, start + maxLength)).toString();
+        }
+
+        private int parseAction(int start, int end) {
+            int keyword = keywordAt(start);
+            if (keyword < 0) {
+                return INVALID;
+            }
+            int i = start + KEYWORDS[keyword].length();
+
+            if (keyword == WAIT) {
+                return i == end ? WAIT : INVALID;
+            }
+            if (i >= end || line.charAt(i) != ' ') {
+                return INVALID;
+            }
+            i++;
+
+            if (keyword == MSG) {
+                for (int j = i; j < end; j++) {
+                    if (isLineTerminator(line.charAt(j))) {
+                        return INVALID;
+                    }
+                }
+                messageStart = i;
+                return MSG;
+            }
+
+            int argumentCount = keyword == MOVE ? 3 : keyword == BOMB ? 2 : 1;
+            for (int argument = 0; argument < argumentCount; argument++) {
+                if (argument > 0) {
+                    int next = skipWhitespaces(i);
+                    if (next == i) {
+                        return INVALID;
+                    }
+                    i = next;
+                }
+                if (!readNumber(i, end)) {
+                    return INVALID;
+                }
+                i = numberEnd;
+                if (argument == 0) {
+                    src = number;
+                } else if (argument == 1) {
+                    dst = number;
+                } else {
+                    units = number;
+                }
+            }
+            return i == end ? keyword : INVALID;
+        }
+
+        private boolean readNumber(int start, int end) {
+            int value = 0;
+            int i = start;
+            while (i < end && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+                if (i - start == MAX_DIGITS) {
+                    return false;
+                }
+                value = 10 * value + (line.charAt(i) - '0');
+                i++;
+            }
+            number = value;
+            numberEnd = i;
+            return i > start;
+        }
+
+        /**
+         * @return the index in KEYWORDS of the keyword starting at the given position, or -1
+         */
+        private int keywordAt(int start) {
+            for (int keyword = 0; keyword < KEYWORDS.length; keyword++) {
+                String text = KEYWORDS[keyword];
+                if (start + text.length() <= line.length()) {
+                    int i = 0;
+                    while (i < text.length() && toUpperCaseAscii(line.charAt(start + i)) == text.charAt(i)) {
+                        i++;
+                    }
+                    if (i == text.length()) {
+                        return keyword;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private int skipWhitespaces(int start) {
+            int i = start;
+            while (i < line.length() && isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+
+        private static char toUpperCaseAscii(char c) {
+            return (c >= 'a' && c <= 'z') ? (char) (c - 'a' + 'A') : c;
+        }
+
+        private static boolean isWhitespace(char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+        }
+
+        private static boolean isLineTerminator(char c) {
+            return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+    }
+
+    /**
+     * Receives the tooltips of a game, the Referee turns them into view tooltips
+     */
+    interface ToolTipListener {
+        void onToolTip(int playerIdx, String code, Object... values);
+    }
+
+    /**
+     * Invalid player output. The Referee reports it as an InvalidInputException or a LostException.
+     */
+    @SuppressWarnings("serial")
+    static class ActionException extends Exception {
+        private final boolean invalidInput;
+        private final String reasonCode;
+        private final Object[] values;
+
+        private ActionException(boolean invalidInput, String reasonCode, Object... values) {
+            super(reasonCode);
+            this.invalidInput = invalidInput;
+            this.reasonCode = reasonCode;
+            this.values = values;
+        }
+
+        public static ActionException invalidInput(String expected, String found) {
+            return new ActionException(true, "InvalidInput", expected, found);
+        }
+
+        public static ActionException lost(String reasonCode, Object... values) {
+            return new ActionException(false, reasonCode, values);
+        }
+    }
+
+    /**
+     * State and rules of a single match, independent from the referee protocol so that it can be played headless. All
+     * the mutable state of a match lives here, entity ids included, so that several games can run concurrently.
+     */
+    static class Game {
+        private Player[] players;
+        private Factory[] factories;
+        private int[] distances;
+        private EntityList<Troop> troops;
+        private List<Troop> newTroops;
+        private Troop[] newTroopByRoute;
+        private TimingWheel<Troop> troopArrivals;
+        private EntityList<Bomb> bombs;
+        private List<Bomb> newBombs;
+        private Bomb[] newBombByRoute;
+        private TimingWheel<Bomb> bombArrivals;
+        private Simulation simulation;
+        private int factoryRadius;
+        private int nextEntityId;
+        // Zobrist hash of the state of the object engine, updated by every change of the state as in the Simulation
+        private long hash;
+
+        // Properties
+        private long seed;
+        private Integer customFactoryCount;
+        private Integer customInitialUnitCount;
+        private boolean splitMixRandom;
+
+        private ToolTipListener toolTipListener;
+        private MapCache mapCache;
+        private TurnMetrics metrics;
+        private ActionParser[] parsers;
+        private DatasetExporter datasetExporter;
+        private DatasetExporter.GameSamples datasetSamples;
+
+        public void setToolTipListener(ToolTipListener toolTipListener) {
+            this.toolTipListener = toolTipListener;
+            if (simulation != null) {
+                simulation.setToolTipListener(toolTipListener);
+            }
+        }
+
+        /**
+         * Take the map from the cache when it holds the map of the game's properties, and store it otherwise
+         */
+        public void setMapCache(MapCache mapCache) {
+            this.mapCache = mapCache;
+        }
+
+        /**
+         * Record the metrics of the game's turns, on the thread playing the game
+         */
+        public void setMetrics(TurnMetrics metrics) {
+            this.metrics = metrics;
+            if (simulation != null) {
+                simulation.setMetrics(metrics);
+            }
+        }
+
+        /**
+         * Export a sample of each turn of the game, and its outcome when it ends
+         */
+        public void setDatasetExporter(DatasetExporter datasetExporter) {
+            this.datasetExporter = datasetExporter;
+        }
+
+        private void fireToolTip(int playerIdx, String code, Object... values) {
+            if (toolTipListener != null) {
+                toolTipListener.onToolTip(playerIdx, code, values);
+            }
+        }
+
+        public void init(int playerCount, Properties prop) {
+            this.seed = Long.valueOf(prop.getProperty("seed", String.valueOf(new Random(System.currentTimeMillis()).nextLong())));
+            String factoryCount = prop.getProperty("factory_count");
+            if (factoryCount != null) {
+                this.customFactoryCount = Integer.valueOf(factoryCount);
+            }
+            String initialUnitCount = prop.getProperty("initial_unit_count");
+            if (initialUnitCount != null) {
+                this.customInitialUnitCount = Integer.valueOf(initialUnitCount);
+            }
+            this.splitMixRandom = RNG_SPLITMIX.equals(prop.getProperty("rng"));
+
+            newTroops = new ArrayList<>();
+            newBombs = new ArrayList<>();
+
+            generatePlayers(playerCount);
+            GameMap map = mapCache == null ? null : mapCache.get(seed, splitMixRandom, customFactoryCount, customInitialUnitCount);
+            if (map == null) {
+                Rng random = splitMixRandom ? new SplitMixRng(seed) : new LegacyRng(seed);
+                map = new MapGenerator().generate(random, customFactoryCount, customInitialUnitCount);
+                if (mapCache != null) {
+                    mapCache.put(seed, splitMixRandom, customFactoryCount, customInitialUnitCount, map);
+                }
+            }
+            loadMap(map);
+
+            this.troops = new EntityList<>();
+            this.bombs = new EntityList<>();
+            int maxDistance = 0;
+            for (int distance : distances) {
+                maxDistance = Math.max(maxDistance, distance);
+            }
+            this.troopArrivals = new TimingWheel<>(maxDistance);
+            this.newTroopByRoute = new Troop[distances.length];
+            this.newBombByRoute = new Bomb[distances.length];
+            this.bombArrivals = new TimingWheel<>(maxDistance);
+
+            for (Player player : players) {
+                player.setTroops(troops);
+                player.setFactories(factories);
+            }
+            for (Factory factory : factories) {
+                if (factory.owner != null) {
+                    factory.owner.unitCount += factory.unitCount;
+                    factory.owner.productionRate += factory.productionRate;
+                }
+            }
+            hash = computeHash();
+
+            if (metrics != null) {
+                metrics.startMatch();
+            }
+            if (datasetExporter != null) {
+                datasetSamples = datasetExporter.startGame(seed, factories.length);
+            }
+
+            // Optional struct-of-arrays engine, with the same rules as the default one
+            if (ENGINE_SOA.equals(prop.getProperty("engine"))) {
+                this.simulation = new Simulation(factories, distances, players, nextEntityId);
+                this.simulation.setToolTipListener(toolTipListener);
+                this.simulation.setMetrics(metrics);
+            }
+        }
+
+        void generatePlayers(int playerCount) {
+            this.players = new Player[playerCount];
+            this.parsers = new ActionParser[playerCount];
+            for (int i = 0; i < playerCount; i++) {
+                this.players[i] = new Player(i);
+                this.parsers[i] = new ActionParser();
+            }
+        }
+
+        /**
+         * Create the factories of a generated map
+         */
+        void loadMap(GameMap map) {
+            int factoryCount = map.getFactoryCount();
+            this.factoryRadius = map.radius;
+            this.factories = new Factory[factoryCount];
+            this.distances = map.distances;
+            for (int i = 0; i < factoryCount; i++) {
+                Player owner = map.owners[i] < 0 ? null : players[map.owners[i]];
+                factories[i] = new Factory(nextEntityId++, owner, map.x[i], map.y[i], factoryRadius, map.unitCounts[i], map.productionRates[i]);
+                factories[i].setDistances(i, factoryCount, distances);
+            }
+        }
+
+        public Properties getConfiguration() {
+            Properties prop = new Properties();
+            prop.setProperty("seed", String.valueOf(this.seed));
+            if (this.customFactoryCount != null) {
+                prop.setProperty("factory_count", String.valueOf(this.customFactoryCount));
+            }
+            if (this.customInitialUnitCount != null) {
+                prop.setProperty("initial_unit_count", String.valueOf(this.customInitialUnitCount));
+            }
+            if (this.splitMixRandom) {
+                prop.setProperty("rng", RNG_SPLITMIX);
+            }
+            return prop;
+        }
+
+        public String[] getInitInputForPlayer(int playerIdx) {
+            List<String> data = new ArrayList<>();
+            data.add(String.valueOf(factories.length));
+
+            // Factory distances
+            List<String> links = new ArrayList<>();
+            for (int i = 0; i < factories.length; i++) {
+                for (int j = i + 1; j < factories.length; j++) {
+                    links.add(factories[i].id + " " + factories[j].id + " " + distances[i * factories.length + j]);
+                }
+            }
+            data.add(String.valueOf(links.size()));
+            data.addAll(links);
+
+            return data.toArray(new String[data.size()]);
+        }
+
+        public String[] getInputForPlayer(int playerIdx) {
+            StringBuilder input = new StringBuilder();
+            appendInputForPlayer(playerIdx, input);
+            return toLines(input);
+        }
+
+        /**
+         * Write the input of a player for the turn, each line followed by a line feed, directly into the given builder. The
+         * builder can be cleared and reused from one turn to the next, no intermediate string is created.
+         */
+        public void appendInputForPlayer(int playerIdx, StringBuilder out) {
+            if (metrics != null) {
+                metrics.begin();
+            }
+            writeInputForPlayer(playerIdx, out);
+            if (metrics != null) {
+                metrics.end(TurnMetrics.Phase.INPUT);
+            }
+        }
+
+        private void writeInputForPlayer(int playerIdx, StringBuilder out) {
+            if (simulation != null) {
+                Simulation sim = simulation;
+                out.append(factories.length + sim.troopCount + sim.bombCount).append('\n');
+                for (Factory factory : factories) {
+                    factory.appendPlayerString(out, playerIdx).append('\n');
+                }
+                for (int i = 0; i < sim.troopCount; i++) {
+                    int ownerShip = (playerIdx == sim.troopOwner[i]) ? 1 : -1;
+                    Entity.appendPlayerString(out, sim.troopId[i], EntityType.TROOP, ownerShip, factories[sim.troopSource[i]].id,
+                            factories[sim.troopDestination[i]].id, sim.troopUnits[i], sim.troopRemainingTurns[i]).append('\n');
+                }
+                for (int i = 0; i < sim.bombCount; i++) {
+                    if (playerIdx == sim.bombOwner[i]) {
+                        Entity.appendPlayerString(out, sim.bombId[i], EntityType.BOMB, 1, factories[sim.bombSource[i]].id,
+                                factories[sim.bombDestination[i]].id, sim.bombRemainingTurns[i], 0).append('\n');
+                    } else {
+                        Entity.appendPlayerString(out, sim.bombId[i], EntityType.BOMB, -1, factories[sim.bombSource[i]].id, -1, -1, 0)
+                                .append('\n');
+                    }
+                }
+            } else {
+                out.append(factories.length + troops.size() + bombs.size()).append('\n');
+                for (Factory factory : factories) {
+                    factory.appendPlayerString(out, playerIdx).append('\n');
+                }
+                for (Troop troop : troops) {
+                    troop.appendPlayerString(out, playerIdx).append('\n');
+                }
+                for (Bomb bomb : bombs) {
+                    bomb.appendPlayerString(out, playerIdx).append('\n');
+                }
+            }
+        }
+
+        private static String[] toLines(CharSequence text) {
+            int lineCount = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') {
+                    lineCount++;
+                }
+            }
+            String[] lines = new String[lineCount];
+            int start = 0;
+            int line = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') {
+                    lines[line++] = text.subSequence(start, i).toString();
+                    start = i + 1;
+                }
+            }
+            return lines;
+        }
+
+        public void handlePlayerOutput(int playerIdx, String[] outputs) throws ActionException {
+            if (metrics != null) {
+                metrics.begin();
+            }
+            try {
+                readPlayerOutput(playerIdx, outputs);
+            } catch (ActionException e) {
+                setDead(playerIdx);
+                throw e;
+            } finally {
+                if (metrics != null) {
+                    metrics.end(TurnMetrics.Phase.PARSE);
+                }
+            }
+        }
+
+        /**
+         * Parse the actions of a player, without calling setDead on error. Only the action lists and the parser of the
+         * player are written, so that the outputs of the players can be parsed concurrently.
+         */
+        void readPlayerOutput(int playerIdx, String[] outputs) throws ActionException {
+            Player player = this.players[playerIdx];
+            ActionParser parser = parsers[playerIdx];
+            player.lastOrders.clear();
+            player.message = null;
+            for (String line : outputs) {
+                parser.reset(line);
+                while (parser.hasNext()) {
+                    int actionType = parser.next();
+                    if (actionType == ActionParser.MOVE) {
+                        if (MOVE_RESTRICTION_ENABLED && player.lastOrders.moveCount > 0) {
+                            // Silently ignore multiple moves
+                            continue;
+                        }
+
+                        int src = parser.src;
+                        int dst = parser.dst;
+                        int units = parser.units;
+
+                        if (src >= this.factories.length) {
+                            throw ActionException.invalidInput("0 <= source < " + this.factories.length, String.valueOf(src));
+                        }
+                        if (dst >= this.factories.length) {
+                            throw ActionException.invalidInput("0 <= destination < " + this.factories.length, String.valueOf(dst));
+                        }
+                        if (this.factories[src].owner != player) {
+                            throw ActionException.lost("MoveFromNotControlledFactory", src);
+                        }
+                        if (src == dst) {
+                            throw ActionException.lost("MoveSameSourceDestination", src);
+                        }
+
+                        player.lastOrders.addMove(src, dst, units);
+                    } else if (actionType == ActionParser.BOMB) {
+                        int src = parser.src;
+                        int dst = parser.dst;
+                        if (src >= this.factories.length) {
+                            throw ActionException.invalidInput("0 <= source < " + this.factories.length, String.valueOf(src));
+                        }
+                        if (dst >= this.factories.length) {
+                            throw ActionException.invalidInput("0 <= destination < " + this.factories.length, String.valueOf(dst));
+                        }
+                        if (this.factories[src].owner != player) {
+                            throw ActionException.lost("BombFromNotControlledFactory", src);
+                        }
+                        if (src == dst) {
+                            throw ActionException.lost("BombSameSourceDestination", src);
+                        }
+
+                        player.lastOrders.addBomb(src, dst);
+                    } else if (actionType == ActionParser.INC) {
+                        if (!INCREASE_ACTION_ENABLED) {
+                            // Silently ignore increase actions
+                            continue;
+                        }
+
+                        int src = parser.src;
+                        
+                        if (src >= this.factories.length) {
+                            throw ActionException.invalidInput("0 <= source < " + this.factories.length, String.valueOf(src));
+                        }                        
+                        if (this.factories[src].owner != player) {
+                            throw ActionException.lost("IncFromNotControlledFactory", src);
+                        }
+
+                        player.lastOrders.addInc(src);
+                    } else if (actionType == ActionParser.WAIT) {
+                        // do nothing.
+                    } else if (actionType == ActionParser.MSG) {
+                        player.message = parser.getMessage(100);
+                    } else {
+                        throw ActionException.invalidInput("A valid action", parser.getAction());
+                    }
+                }
+            }
+        }
+
+        public void setDead(int playerIdx) {
+            Player player = players[playerIdx];
+            for (Factory factory : factories) {
+                if (factory.owner == player) {
+                    hash ^= Zobrist.owner(factory.index, playerIdx) ^ Zobrist.owner(factory.index, Simulation.NEUTRAL);
+                }
+            }
+            for (Troop troop : troops) {
+                if (troop.owner == player) {
+                    hash ^= troopHash(troop);
+                }
+            }
+            player.setDead();
+            if (simulation != null) {
+                simulation.setDead(playerIdx);
+            }
+            if (datasetSamples != null) {
+                finishDataset(playerIdx);
+            }
+        }
+
+        /**
+         * @return the index of the route in the tables of the entities sent this turn
+         */
+        private int getRoute(Factory source, Factory destination) {
+            return source.index * factories.length + destination.index;
+        }
+
+        /**
+         * Play one turn with the actions parsed by handlePlayerOutput
+         * 
+         * @return true if the end of the game is reached
+         */
+        public boolean updateGame() {
+            if (datasetSamples != null) {
+                recordDatasetSample();
+            }
+            boolean gameOver = playTurn();
+            if (datasetSamples != null && (gameOver || datasetSamples.getSampleCount() == MAX_ROUNDS)) {
+                finishDataset(-1);
+            }
+            return gameOver;
+        }
+
+        private boolean playTurn() {
+            if (metrics != null) {
+                metrics.begin();
+            }
+            if (simulation != null) {
+                return updateSimulation();
+            }
+            return updateObjects();
+        }
+
+        /**
+         * Same as updateGame, played on the object engine. It is compiled apart from updateSimulation: the JIT compiler
+         * would inline both engines in playTurn when both run in the JVM, up to its size limit.
+         */
+        private boolean updateObjects() {
+            newTroops.clear();
+            newBombs.clear();
+            Arrays.fill(newTroopByRoute, null);
+            Arrays.fill(newBombByRoute, null);
+
+            // ---
+            // Move troops and bombs
+            // ---
+            // Unit counts change many times in a turn, so their keys are replaced once, at the end of the turn
+            hash ^= Zobrist.turn(troopArrivals.getTurn()) ^ Zobrist.turn(troopArrivals.getTurn() + 1);
+            for (Factory factory : factories) {
+                hash ^= Zobrist.units(factory.index, factory.unitCount);
+            }
+            troopArrivals.advance();
+            bombArrivals.advance();
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.MOVE);
+            }
+
+            // ---
+            // Decrease disabled countdown
+            // ---
+            for (Factory factory : factories) {
+                if (factory.disabled > 0) {
+                    setDisabled(factory, factory.disabled - 1);
+                }
+            }
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.DISABLED_COUNTDOWN);
+            }
+
+            // ---
+            // Execute orders
+            // ---
+            for (Player player : players) {
+                Orders orders = player.lastOrders;
+
+                // Send bombs
+                for (int i = 0; i < orders.bombCount; i++) {
+                    Factory src = factories[orders.bombSource[i]];
+                    Factory dst = factories[orders.bombDestination[i]];
+                    Bomb bomb = new Bomb(nextEntityId++, src, dst, bombArrivals);
+                    int route = getRoute(src, dst);
+                    if (player.remainingBombs > 0 && newBombByRoute[route] == null) {
+                        newBombs.add(bomb);
+                        newBombByRoute[route] = bomb;
+                        bombs.add(bomb);
+                        bombArrivals.schedule(bomb);
+                        hash ^= bombHash(bomb);
+                        hash ^= Zobrist.remainingBombs(player.id, player.remainingBombs)
+                                ^ Zobrist.remainingBombs(player.id, player.remainingBombs - 1);
+                        player.remainingBombs--;
+                        fireToolTip(player.id, "BombAction", player.id, src.id, dst.id);
+                    }
+                }
+
+                // Send troops
+                for (int i = 0; i < orders.moveCount; i++) {
+                    Factory src = factories[orders.moveSource[i]];
+                    Factory dst = factories[orders.moveDestination[i]];
+                    int unitsToMove = Math.min(src.unitCount, orders.moveUnits[i]);
+                    Troop troop = new Troop(nextEntityId++, src, dst, unitsToMove, troopArrivals);
+
+                    int route = getRoute(src, dst);
+
+                    if (unitsToMove > 0 && newBombByRoute[route] == null) { // Forbid sending units with the same source and destination as a bomb
+                        src.unitCount -= unitsToMove;
+
+                        Troop other = newTroopByRoute[route];
+                        if (other != null) {
+                            other.unitCount += unitsToMove;
+                        } else {
+                            troops.add(troop);
+                            newTroops.add(troop);
+                            newTroopByRoute[route] = troop;
+                            troopArrivals.schedule(troop);
+                        }
+                    }
+                }
+
+                // Increase
+                for (int i = 0; i < orders.incCount; i++) {
+                    Factory src = factories[orders.incSource[i]];
+                    if (src.unitCount >= COST_INCREASE_PRODUCTION && src.productionRate < MAX_PRODUCTION_RATE) {
+                        setProduction(src, src.productionRate + 1);
+                        src.unitCount -= COST_INCREASE_PRODUCTION;
+                        player.productionRate++;
+                        player.unitCount -= COST_INCREASE_PRODUCTION;
+                        fireToolTip(player.id, "IncAction", player.id, src.id);
+                    }
+                }
+            }
+            // New troops are hashed once their merges are done
+            for (Troop troop : newTroops) {
+                hash ^= troopHash(troop);
+            }
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.ORDERS);
+            }
+
+            // ---
+            // Create new units
+            // ---
+            for (Factory factory : factories) {
+                if (factory.owner != null) {
+                    factory.unitCount += factory.getCurrentProductionRate();
+                    factory.owner.unitCount += factory.getCurrentProductionRate();
+                }
+            }
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.PRODUCTION);
+            }
+
+            // ---
+            // Solve battles
+            // ---
+            for (Factory factory : factories) {
+                factory.unitsReadyToFight[0] = factory.unitsReadyToFight[1] = 0;
+            }
+            List<Troop> arrivedTroops = troopArrivals.getArrivals();
+            for (Troop troop : arrivedTroops) {
+                if (troops.remove(troop)) { // Troops of a dead player are already gone
+                    hash ^= troopHash(troop);
+                    troop.destination.unitsReadyToFight[troop.owner.id] += troop.unitCount;
+                    troop.owner.unitCount -= troop.unitCount;
+                }
+            }
+            arrivedTroops.clear();
+            for (Factory factory : factories) {
+                // Units from both players fight first
+                int units = Math.min(factory.unitsReadyToFight[0], factory.unitsReadyToFight[1]);
+                factory.unitsReadyToFight[0] -= units;
+                factory.unitsReadyToFight[1] -= units;
+
+                // Remaining units fight on the factory
+                for (Player player : players) {
+                    if (factory.owner == player) { // Allied
+                        factory.unitCount += factory.unitsReadyToFight[player.id];
+                        player.unitCount += factory.unitsReadyToFight[player.id];
+                    } else { // Opponent
+                        if (factory.unitsReadyToFight[player.id] > factory.unitCount) {
+                            if (factory.owner != null) {
+                                factory.owner.unitCount -= factory.unitCount;
+                                factory.owner.productionRate -= factory.productionRate;
+                            }
+                            setOwner(factory, player);
+                            factory.unitCount = factory.unitsReadyToFight[player.id] - factory.unitCount;
+                            player.unitCount += factory.unitCount;
+                            player.productionRate += factory.productionRate;
+                        } else {
+                            factory.unitCount -= factory.unitsReadyToFight[player.id];
+                            if (factory.owner != null) {
+                                factory.owner.unitCount -= factory.unitsReadyToFight[player.id];
+                            }
+                        }
+                    }
+                }
+            }
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.BATTLES);
+            }
+
+            // ---
+            // Solve bombs
+            // ---
+            List<Bomb> arrivedBombs = bombArrivals.getArrivals();
+            for (Bomb bomb : arrivedBombs) {
+                Factory destination = bomb.destination;
+                hash ^= bombHash(bomb) ^ Zobrist.disabled(destination.index, destination.disabled);
+                bomb.explode();
+                hash ^= Zobrist.disabled(destination.index, destination.disabled);
+                bombs.remove(bomb);
+            }
+            arrivedBombs.clear();
+            for (Factory factory : factories) {
+                hash ^= Zobrist.units(factory.index, factory.unitCount);
+            }
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.BOMBS);
+            }
+
+            // ---
+            // Update score
+            // ---
+            for (Player player : players) {
+                player.score = player.unitCount;
+            }
+            if (metrics != null) {
+                metrics.lap(TurnMetrics.Phase.SCORE);
+            }
+
+            // ---
+            // Check end conditions
+            // ---
+            boolean gameOver = false;
+            for (Player player : players) {
+                if (player.score == 0) {
+                    if (player.productionRate == 0) {
+                        gameOver = true;
+                    } else {
+                        // Keep playing until this player has produced some units
+                        gameOver = false;
+                        break;
+                    }
+                }
+            }
+            if (metrics != null) {
+                metrics.end(TurnMetrics.Phase.END_CHECK);
+                metrics.endTurn(troops.size(), bombs.size());
+            }
+
+            return gameOver;
+        }
+
+        /**
+         * Record the state before the turn and the actions parsed for it
+         */
+        private void recordDatasetSample() {
+            DatasetExporter.GameSamples samples = datasetSamples;
+            int sample = samples.addSample();
+            samples.set(DatasetExporter.TURN, sample, 0, simulation != null ? simulation.turn : troopArrivals.getTurn());
+            for (Player player : players) {
+                samples.set(DatasetExporter.REMAINING_BOMBS, sample, player.id, player.remainingBombs);
+            }
+            for (Factory factory : factories) {
+                samples.set(DatasetExporter.OWNER, sample, factory.index, factory.owner == null ? 0 : 1 - 2 * factory.owner.id);
+                samples.set(DatasetExporter.UNITS, sample, factory.index, factory.unitCount);
+                samples.set(DatasetExporter.PRODUCTION, sample, factory.index, factory.productionRate);
+                samples.set(DatasetExporter.DISABLED, sample, factory.index, factory.disabled);
+            }
+
+            // Troops and bombs in flight, aggregated by destination and owner
+            if (simulation != null) {
+                Simulation sim = simulation;
+                for (int i = 0; i < sim.troopCount; i++) {
+                    if (sim.troopOwner[i] != Simulation.NEUTRAL) {
+                        addIncomingTroop(sample, sim.troopOwner[i], sim.troopDestination[i], sim.troopUnits[i], sim.troopRemainingTurns[i]);
+                    }
+                }
+                for (int i = 0; i < sim.bombCount; i++) {
+                    if (sim.bombOwner[i] != Simulation.NEUTRAL) {
+                        int column = sim.bombOwner[i] * DatasetExporter.FACTORY_WIDTH + sim.bombDestination[i];
+                        samples.add(DatasetExporter.INCOMING_BOMBS, sample, column, 1);
+                    }
+                }
+            } else {
+                for (Troop troop : troops) {
+                    addIncomingTroop(sample, troop.owner.id, troop.destination.index, troop.unitCount, troop.getRemainingTurns());
+                }
+                for (Bomb bomb : bombs) {
+                    int column = bomb.owner.id * DatasetExporter.FACTORY_WIDTH + bomb.destination.index;
+                    samples.add(DatasetExporter.INCOMING_BOMBS, sample, column, 1);
+                }
+            }
+
+            for (Player player : players) {
+                Orders orders = player.lastOrders;
+                for (int i = 0; i < orders.moveCount; i++) {
+                    samples.addAction(DatasetExporter.MOVE, orders.moveSource[i], orders.moveDestination[i], orders.moveUnits[i]);
+                }
+                for (int i = 0; i < orders.bombCount; i++) {
+                    samples.addAction(DatasetExporter.BOMB, orders.bombSource[i], orders.bombDestination[i], 0);
+                }
+                for (int i = 0; i < orders.incCount; i++) {
+                    samples.addAction(DatasetExporter.INC, orders.incSource[i], DatasetExporter.NO_DESTINATION, 0);
+                }
+                samples.set(DatasetExporter.ACTION_COUNT, sample, player.id, orders.moveCount + orders.bombCount + orders.incCount);
+            }
+        }
+
+        private void addIncomingTroop(int sample, int owner, int destination, int units, int remainingTurns) {
+            DatasetExporter.GameSamples samples = datasetSamples;
+            int column = owner * DatasetExporter.FACTORY_WIDTH + destination;
+            samples.add(DatasetExporter.INCOMING_UNITS, sample, column, units);
+            int nearest = samples.get(DatasetExporter.NEAREST_ARRIVAL, sample, column);
+            if (nearest == 0 || remainingTurns < nearest) {
+                samples.set(DatasetExporter.NEAREST_ARRIVAL, sample, column, remainingTurns);
+            }
+        }
+
+        /**
+         * Label the samples of the game with its outcome, and hand them to the exporter
+         * 
+         * @param eliminated
+         *            the index of the player who lost by timeout or invalid output, or -1
+         */
+        private void finishDataset(int eliminated) {
+            DatasetExporter.GameSamples samples = datasetSamples;
+            datasetSamples = null;
+            int winner;
+            if (eliminated >= 0) {
+                winner = 1 - eliminated;
+            } else if (players[0].score != players[1].score) {
+                winner = players[0].score > players[1].score ? 0 : 1;
+            } else {
+                winner = -1;
+            }
+            samples.setOutcome(winner, eliminated, players[0].score, players[1].score);
+            if (samples.getSampleCount() > 0) {
+                datasetExporter.submit(samples);
+            }
+        }
+
+        /**
+         * Same as updateGame, played on the struct-of-arrays engine
+         */
+        private boolean updateSimulation() {
+            Simulation sim = simulation;
+            boolean gameOver = sim.step(players[0].lastOrders, players[1].lastOrders);
+
+            // Factories and players are kept in sync for the inputs, the view and the scores
+            for (int i = 0; i < factories.length; i++) {
+                Factory factory = factories[i];
+                factory.owner = sim.factoryOwner[i] == Simulation.NEUTRAL ? null : players[sim.factoryOwner[i]];
+                factory.unitCount = sim.factoryUnits[i];
+                factory.productionRate = sim.factoryProduction[i];
+                factory.disabled = sim.factoryDisabled[i];
+            }
+            for (Player player : players) {
+                player.score = sim.scores[player.id];
+                player.remainingBombs = sim.remainingBombs[player.id];
+            }
+            if (metrics != null) {
+                // The end check of the simulation and the synchronization of the objects
+                metrics.end(TurnMetrics.Phase.END_CHECK);
+                metrics.endTurn(sim.troopCount, sim.bombCount);
+            }
+
+            return gameOver;
+        }
+
+        public String[] getInitDataForView() {
+            List<String> data = new ArrayList<>();
+            data.add(WIDTH + " " + HEIGHT + " " + factories.length + " " + BOMBS_PER_PLAYER);
+            for (Factory factory : factories) {
+                data.add(factory.toViewStringInit());
+            }
+            data.add(0, String.valueOf(data.size() + 1));
+            return data.toArray(new String[data.size()]);
+        }
+
+        public String[] getFrameDataForView() {
+            return getFrameDataForView(false);
+        }
+
+        /**
+         * @param keyFrame
+         *            list all the troops and bombs in flight instead of the new ones, so that the frame describes the
+         *            whole state of the game
+         */
+        public String[] getFrameDataForView(boolean keyFrame) {
+            if (metrics != null) {
+                metrics.begin();
+            }
+            String[] frame = writeFrameDataForView(keyFrame);
+            if (metrics != null) {
+                metrics.end(TurnMetrics.Phase.VIEW);
+            }
+            return frame;
+        }
+
+        private String[] writeFrameDataForView(boolean keyFrame) {
+            List<String> data = new ArrayList<>();
+            // Pass the scores and messages
+            for (int playerIdx = 0; playerIdx < players.length; ++playerIdx) {
+                String playerInfo = String.valueOf(players[playerIdx].score) + " " + players[playerIdx].remainingBombs;
+                if (players[playerIdx].message != null) {
+                    playerInfo += " " + players[playerIdx].message;
+                }
+                data.add(playerInfo);
+            }
+
+            // Pass the troops
+            List<String> troopData = new ArrayList<>();
+            if (simulation != null) {
+                Simulation sim = simulation;
+                for (int i = keyFrame ? 0 : sim.newTroopStart; i < sim.troopCount; i++) {
+                    troopData.add(Troop.toViewString(sim.troopId[i], Math.max(sim.troopOwner[i], 0), factories[sim.troopSource[i]].id,
+                            factories[sim.troopDestination[i]].id, sim.troopUnits[i], sim.troopRemainingTurns[i]));
+                }
+            } else {
+                for (Troop troop : keyFrame ? troops : newTroops) {
+                    troopData.add(troop.toViewString());
+                }
+            }
+            data.add(String.valueOf(troopData.size()));
+            data.addAll(troopData);
+
+            // Pass the bombs
+            List<String> bombData = new ArrayList<>();
+            if (simulation != null) {
+                Simulation sim = simulation;
+                for (int i = keyFrame ? 0 : sim.newBombStart; i < sim.bombCount; i++) {
+                    bombData.add(Bomb.toViewString(sim.bombId[i], Math.max(sim.bombOwner[i], 0), factories[sim.bombSource[i]].id,
+                            factories[sim.bombDestination[i]].id, sim.bombRemainingTurns[i]));
+                }
+            } else {
+                for (Bomb bomb : keyFrame ? bombs : newBombs) {
+                    bombData.add(bomb.toViewString());
+                }
+            }
+            data.add(String.valueOf(bombData.size()));
+            data.addAll(bombData);
+
+            // Pass the factories
+            for (Factory factory : factories) {
+                data.add(factory.toViewString());
+            }
+            return data.toArray(new String[data.size()]);
+        }
+
+        public int getScore(int playerIdx) {
+            return players[playerIdx].score;
+        }
+
+        /**
+         * @return the Zobrist hash of the current state, see Simulation.getHash. Both engines keep it up to date.
+         */
+        public long getStateHash() {
+            return simulation != null ? simulation.getHash() : hash;
+        }
+
+        /**
+         * Compute the hash of the object engine from scratch, with the same keys as Simulation.computeHash
+         */
+        private long computeHash() {
+            long hash = Zobrist.turn(troopArrivals.getTurn());
+            for (Factory factory : factories) {
+                hash ^= Zobrist.owner(factory.index, factory.owner == null ? Simulation.NEUTRAL : factory.owner.id)
+                        ^ Zobrist.units(factory.index, factory.unitCount) ^ Zobrist.production(factory.index, factory.productionRate)
+                        ^ Zobrist.disabled(factory.index, factory.disabled);
+            }
+            for (Troop troop : troops) {
+                hash ^= troopHash(troop);
+            }
+            for (Bomb bomb : bombs) {
+                hash ^= bombHash(bomb);
+            }
+            for (Player player : players) {
+                hash ^= Zobrist.remainingBombs(player.id, player.remainingBombs);
+            }
+            return hash;
+        }
+
+        private static long troopHash(Troop troop) {
+            return Zobrist.troop(troop.owner == null ? Simulation.NEUTRAL : troop.owner.id, troop.source.index, troop.destination.index,
+                    troop.unitCount, troop.arrivalTurn);
+        }
+
+        private static long bombHash(Bomb bomb) {
+            return Zobrist.bomb(bomb.owner == null ? Simulation.NEUTRAL : bomb.owner.id, bomb.source.index, bomb.destination.index,
+                    bomb.arrivalTurn);
+        }
+
+        private void setOwner(Factory factory, Player owner) {
+            hash ^= Zobrist.owner(factory.index, factory.owner == null ? Simulation.NEUTRAL : factory.owner.id)
+                    ^ Zobrist.owner(factory.index, owner == null ? Simulation.NEUTRAL : owner.id);
+            factory.owner = owner;
+        }
+
+        private void setProduction(Factory factory, int production) {
+            hash ^= Zobrist.production(factory.index, factory.productionRate) ^ Zobrist.production(factory.index, production);
+            factory.productionRate = production;
+        }
+
+        private void setDisabled(Factory factory, int disabled) {
+            hash ^= Zobrist.disabled(factory.index, factory.disabled) ^ Zobrist.disabled(factory.index, disabled);
+            factory.disabled = disabled;
+        }
+
+        /**
+         * @return a forward model of the current state of the game, independent from this game
+         */
+        public Simulation createSimulation() {
+            if (simulation != null) {
+                return new Simulation(simulation);
+            }
+            Simulation sim = new Simulation(factories, distances, players, nextEntityId);
+            for (Troop troop : troops) {
+                sim.addTroop(troop.id, troop.owner == null ? Simulation.NEUTRAL : troop.owner.id, troop.source.index, troop.destination.index,
+                        troop.unitCount, troop.getRemainingTurns());
+            }
+            for (Bomb bomb : bombs) {
+                sim.addBomb(bomb.id, bomb.owner == null ? Simulation.NEUTRAL : bomb.owner.id, bomb.source.index, bomb.destination.index,
+                        bomb.getRemainingTurns());
+            }
+            sim.newTroopStart = sim.troopCount;
+            sim.newBombStart = sim.bombCount;
+            sim.turn = troopArrivals.getTurn();
+            sim.countUnits();
+            sim.hash = sim.computeHash();
+            return sim;
+        }
+
+        public int getPlayerCount() {
+            return players.length;
+        }
+    }
+
+    /**
+     * Random number generator of the map generation, not synchronized: a generator belongs to one thread
+     */
+    interface Rng {
+        /**
+         * @return a value between 0 (inclusive) and bound (exclusive)
+         */
+        int nextInt(int bound);
+
+        long nextLong();
+    }
+
+    /**
+     * Same sequences as java.util.Random, without its atomic seed updates, so that the seeds of the legacy maps still
+     * generate the same maps
+     */
+    static class LegacyRng implements Rng {
+        private static final long MULTIPLIER = 0x5DEECE66DL;
+        private static final long ADDEND = 0xBL;
+        private static final long MASK = (1L << 48) - 1;
+
+        private long seed;
+
+        public LegacyRng(long seed) {
+            this.seed = (seed ^ MULTIPLIER) & MASK;
+        }
+
+        private int next(int bits) {
+            seed = (seed * MULTIPLIER + ADDEND) & MASK;
+            return (int) (seed >>> (48 - bits));
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            if (bound <= 0) {
+                throw new IllegalArgumentException("bound must be positive");
+            }
+            int r = next(31);
+            int m = bound - 1;
+            if ((bound & m) == 0) {
+                return (int) ((bound * (long) r) >> 31);
+            }
+            for (int u = r; u - (r = u % bound) + m < 0; u = next(31)) {
+                continue;
+            }
+            return r;
+        }
+
+        @Override
+        public long nextLong() {
+            return ((long) next(32) << 32) + next(32);
+        }
+    }
+
+    /**
+     * SplitMix64 generator: a single addition and a mix per value, and split gives an independent generator to another
+     * thread. Its maps differ from the legacy ones, it is meant for synthetic map corpora.
+     */
+    static class SplitMixRng implements Rng {
+        private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+        private long state;
+
+        public SplitMixRng(long seed) {
+            this.state = seed;
+        }
+
+        @Override
+        public long nextLong() {
+            long z = state += GOLDEN_GAMMA;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        /**
+         * Lemire's multiply-shift reduction, rejecting the few values that would bias the result
+         */
+        @Override
+        public int nextInt(int bound) {
+            if (bound <= 0) {
+                throw new IllegalArgumentException("bound must be positive");
+            }
+            long product = (nextLong() >>> 32) * bound;
+            if ((product & 0xFFFFFFFFL) < bound) {
+                long threshold = (1L << 32) % bound;
+                while ((product & 0xFFFFFFFFL) < threshold) {
+                    product = (nextLong() >>> 32) * bound;
+                }
+            }
+            return (int) (product >>> 32);
+        }
+
+        public SplitMixRng split() {
+            return new SplitMixRng(nextLong());
+        }
+    }
+
+    /**
+     * Immutable output of the map generation: the factories as generated, before any turn, and their distance matrix.
+     * Games built from the same map share its distance matrix, which is never written.
+     */
+    static class GameMap {
+        private final int radius;
+        private final int[] x;
+        private final int[] y;
+        private final int[] owners;
+        private final int[] unitCounts;
+        private final int[] productionRates;
+        private final int[] distances;
+
+        GameMap(int radius, int[] x, int[] y, int[] owners, int[] unitCounts, int[] productionRates, int[] distances) {
+            this.radius = radius;
+            this.x = x;
+            this.y = y;
+            this.owners = owners;
+            this.unitCounts = unitCounts;
+            this.productionRates = productionRates;
+            this.distances = distances;
+        }
+
+        public int getFactoryCount() {
+            return x.length;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(radius);
+            out.writeByte(x.length);
+            for (int i = 0; i < x.length; i++) {
+                out.writeShort(x[i]);
+                out.writeShort(y[i]);
+                out.writeByte(owners[i]);
+                out.writeShort(unitCounts[i]);
+                out.writeByte(productionRates[i]);
+            }
+            for (int distance : distances) {
+                out.writeByte(distance);
+            }
+        }
+
+        static GameMap read(DataInputStream in) throws IOException {
+            int radius = in.readShort();
+            int factoryCount = in.readUnsignedByte();
+            int[] x = new int[factoryCount];
+            int[] y = new int[factoryCount];
+            int[] owners = new int[factoryCount];
+            int[] unitCounts = new int[factoryCount];
+            int[] productionRates = new int[factoryCount];
+            for (int i = 0; i < factoryCount; i++) {
+                x[i] = in.readShort();
+                y[i] = in.readShort();
+                owners[i] = in.readByte();
+                unitCounts[i] = in.readShort();
+                productionRates[i] = in.readByte();
+            }
+            int[] distances = new int[factoryCount * factoryCount];
+            for (int i = 0; i < distances.length; i++) {
+                distances[i] = in.readUnsignedByte();
+            }
+            return new GameMap(radius, x, y, owners, unitCounts, productionRates, distances);
+        }
+    }
+
+    /**
+     * Generates the maps of the games. Factory positions are drawn until they are far enough from the factories already
+     * placed. The placed factories are indexed in a uniform grid whose cells are as large as the minimum spacing, so that
+     * a position is only compared to the factories of the 3x3 cells around it, with squared distances. A generator is
+     * reused from one map to the next by a single thread.
+     */
+    static class MapGenerator {
+        private static final int MIN_CELL_SIZE = 2 * (600 + EXTRA_SPACE_BETWEEN_FACTORIES);
+
+        private final int[] cellFirst = new int[(WIDTH / MIN_CELL_SIZE + 1) * (HEIGHT / MIN_CELL_SIZE + 1)];
+        private final int[] cellNext = new int[MAX_FACTORY_COUNT + 1];
+        private int cellSize;
+        private int columns;
+        private int rows;
+
+        /**
+         * @param customFactoryCount
+         *            the factory_count property, or null
+         * @param customInitialUnitCount
+         *            the initial_unit_count property, or null
+         */
+        public GameMap generate(Rng random, Integer customFactoryCount, Integer customInitialUnitCount) {
+            int factoryCount;
+            if (customFactoryCount != null && customFactoryCount >= MIN_FACTORY_COUNT && customFactoryCount <= MAX_FACTORY_COUNT) {
+                factoryCount = customFactoryCount;
+            } else {
+                factoryCount = MIN_FACTORY_COUNT + random.nextInt(MAX_FACTORY_COUNT - MIN_FACTORY_COUNT + 1);
+            }
+
+            if (factoryCount % 2 == 0) { // factoryCount must be odd
+                factoryCount++;
+            }
+            int factoryRadius = factoryCount > 10 ? 600 : 700;
+
+            int minSpaceBetweenFactories = 2 * (factoryRadius + EXTRA_SPACE_BETWEEN_FACTORIES);
+            cellSize = minSpaceBetweenFactories;
+            columns = WIDTH / cellSize + 1;
+            rows = HEIGHT / cellSize + 1;
+            Arrays.fill(cellFirst, 0, columns * rows, -1);
+
+            int[] x = new int[factoryCount];
+            int[] y = new int[factoryCount];
+            int[] owners = new int[factoryCount];
+            int[] unitCounts = new int[factoryCount];
+            int[] productionRates = new int[factoryCount];
+
+            int i = 0;
+
+            // Add one factory at the center of the map
+            place(i++, WIDTH / 2, HEIGHT / 2, -1, 0, 0, x, y, owners, unitCounts, productionRates);
+
+            while (i < factoryCount - 1) {
+                int candidateX = random.nextInt(WIDTH / 2 - 2 * factoryRadius) + factoryRadius + EXTRA_SPACE_BETWEEN_FACTORIES;
+                int candidateY = random.nextInt(HEIGHT - 2 * factoryRadius) + factoryRadius + EXTRA_SPACE_BETWEEN_FACTORIES;
+
+                if (isFree(candidateX, candidateY, minSpaceBetweenFactories, x, y)) {
+                    int productionRate = MIN_PRODUCTION_RATE + random.nextInt(MAX_PRODUCTION_RATE - MIN_PRODUCTION_RATE + 1);
+
+                    int unitCount;
+                    int owner;
+                    if (i == 1) {
+                        if (customInitialUnitCount != null && customInitialUnitCount >= PLAYER_INIT_UNITS_MIN
+                                && customInitialUnitCount <= PLAYER_INIT_UNITS_MAX) {
+                            unitCount = customInitialUnitCount;
+                        } else {
+                            unitCount = PLAYER_INIT_UNITS_MIN + random.nextInt(PLAYER_INIT_UNITS_MAX - PLAYER_INIT_UNITS_MIN + 1);
+                        }
+                        owner = 0;
+                    } else {
+                        unitCount = random.nextInt(5 * productionRate + 1);
+                        owner = -1;
+                    }
+                    place(i++, candidateX, candidateY, owner, unitCount, productionRate, x, y, owners, unitCounts, productionRates);
+                    place(i++, WIDTH - candidateX, HEIGHT - candidateY, owner < 0 ? -1 : 1, unitCount, productionRate, x, y, owners,
+                            unitCounts, productionRates);
+                }
+            }
+
+            // Distances are computed once, in a flat factoryCount x factoryCount matrix indexed by factory index
+            int[] distances = new int[factoryCount * factoryCount];
+            int totalProductionRate = 0;
+            for (int j = 0; j < factoryCount; j++) {
+                for (int k = j + 1; k < factoryCount; k++) {
+                    long dx = x[j] - x[k];
+                    long dy = y[j] - y[k];
+                    int distance = (int) Math.round((Math.sqrt(dx * dx + dy * dy) - factoryRadius - factoryRadius) / 800.);
+                    distances[j * factoryCount + k] = distance;
+                    distances[k * factoryCount + j] = distance;
+                }
+                totalProductionRate += productionRates[j];
+            }
+
+            // Make sure that the initial accumulated production rate for all the factories is at least MIN_TOTAL_PRODUCTION_RATE
+            for (int j = 1; totalProductionRate < MIN_TOTAL_PRODUCTION_RATE && j < factoryCount; j++) {
+                if (productionRates[j] < MAX_PRODUCTION_RATE) {
+                    productionRates[j]++;
+                    totalProductionRate++;
+                }
+            }
+
+            return new GameMap(factoryRadius, x, y, owners, unitCounts, productionRates, distances);
+        }
+
+        private void place(int index, int factoryX, int factoryY, int owner, int unitCount, int productionRate, int[] x, int[] y,
+                int[] owners, int[] unitCounts, int[] productionRates) {
+            x[index] = factoryX;
+            y[index] = factoryY;
+            owners[index] = owner;
+            unitCounts[index] = unitCount;
+            productionRates[index] = productionRate;
+            int cell = factoryY / cellSize * columns + factoryX / cellSize;
+            cellNext[index] = cellFirst[cell];
+            cellFirst[cell] = index;
+        }
+
+        /**
+         * Same test as Point.distance(x, y) &lt; minSpace: distances are square roots of integers, which are below an
+         * integer exactly when the integers are
+         */
+        private boolean isFree(int candidateX, int candidateY, int minSpace, int[] x, int[] y) {
+            int column = candidateX / cellSize;
+            int row = candidateY / cellSize;
+            int minSquaredSpace = minSpace * minSpace;
+            for (int cellRow = Math.max(0, row - 1); cellRow <= Math.min(rows - 1, row + 1); cellRow++) {
+                for (int cellColumn = Math.max(0, column - 1); cellColumn <= Math.min(columns - 1, column + 1); cellColumn++) {
+                    for (int j = cellFirst[cellRow * columns + cellColumn]; j >= 0; j = cellNext[j]) {
+                        int dx = x[j] - candidateX;
+                        int dy = y[j] - candidateY;
+                        if (dx * dx + dy * dy < minSquaredSpace) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Generated maps keyed by the properties the generation depends on: seed, rng, factory_count and initial_unit_count. A
+     * cache can be shared by concurrent games, and saved to a file to skip the generation in later runs.
+     */
+    static class MapCache {
+        private static final int MAGIC = 0x4749544D;
+        private static final int VERSION = 2;
+
+        private final ConcurrentHashMap<MapKey, GameMap> maps = new ConcurrentHashMap<>();
+        private volatile int capacity = Integer.MAX_VALUE;
+
+        /**
+         * Maps put once the cache holds this many maps are not kept
+         */
+        public void setCapacity(int capacity) {
+            this.capacity = capacity;
+        }
+
+        public GameMap get(long seed, boolean splitMixRandom, Integer factoryCount, Integer initialUnitCount) {
+            return maps.get(new MapKey(seed, splitMixRandom, factoryCount, initialUnitCount));
+        }
+
+        public void put(long seed, boolean splitMixRandom, Integer factoryCount, Integer initialUnitCount, GameMap map) {
+            if (maps.size() < capacity) {
+                maps.putIfAbsent(new MapKey(seed, splitMixRandom, factoryCount, initialUnitCount), map);
+            }
+        }
+
+        public int size() {
+            return maps.size();
+        }
+
+        /**
+         * Generate the maps of the configurations, for example those of BatchRunner.seeds, before saving them. Every
+         * configuration must have a seed.
+         */
+        public void generate(List<Properties> configurations) {
+            MapGenerator generator = new MapGenerator();
+            for (Properties configuration : configurations) {
+                long seed = Long.parseLong(configuration.getProperty("seed"));
+                boolean splitMixRandom = RNG_SPLITMIX.equals(configuration.getProperty("rng"));
+                String factoryCountProperty = configuration.getProperty("factory_count");
+                String initialUnitCountProperty = configuration.getProperty("initial_unit_count");
+                Integer factoryCount = factoryCountProperty == null ? null : Integer.valueOf(factoryCountProperty);
+                Integer initialUnitCount = initialUnitCountProperty == null ? null : Integer.valueOf(initialUnitCountProperty);
+                if (get(seed, splitMixRandom, factoryCount, initialUnitCount) == null) {
+                    Rng random = splitMixRandom ? new SplitMixRng(seed) : new LegacyRng(seed);
+                    put(seed, splitMixRandom, factoryCount, initialUnitCount, generator.generate(random, factoryCount, initialUnitCount));
+                }
+            }
+        }
+
+        public void save(File file) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeByte(MAX_FACTORY_COUNT);
+                out.writeInt(maps.size());
+                for (Entry<MapKey, GameMap> entry : maps.entrySet()) {
+                    MapKey key = entry.getKey();
+                    out.writeLong(key.seed);
+                    out.writeBoolean(key.splitMixRandom);
+                    out.writeInt(key.factoryCount == null ? -1 : key.factoryCount);
+                    out.writeInt(key.initialUnitCount == null ? -1 : key.initialUnitCount);
+                    entry.getValue().write(out);
+                }
+            }
+        }
+
+        public static MapCache load(File file) throws IOException {
+            MapCache cache = new MapCache();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                    throw new IOException("Not a map cache file: " + file);
+                }
+                if (in.readByte() != MAX_FACTORY_COUNT) { // The random factory count depends on the league
+                    throw new IOException("Map cache generated for another league: " + file);
+                }
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    long seed = in.readLong();
+                    boolean splitMixRandom = in.readBoolean();
+                    int factoryCount = in.readInt();
+                    int initialUnitCount = in.readInt();
+                    cache.put(seed, splitMixRandom, factoryCount < 0 ? null : factoryCount, initialUnitCount < 0 ? null : initialUnitCount,
+                            GameMap.read(in));
+                }
+            }
+            return cache;
+        }
+
+        private static class MapKey {
+            private final long seed;
+            private final boolean splitMixRandom;
+            private final Integer factoryCount;
+            private final Integer initialUnitCount;
+
+            /**
+             * Values ignored by the generation are normalized, so that they share the map they generate
+             */
+            public MapKey(long seed, boolean splitMixRandom, Integer factoryCount, Integer initialUnitCount) {
+                this.seed = seed;
+                this.splitMixRandom = splitMixRandom;
+                if (factoryCount == null || factoryCount < MIN_FACTORY_COUNT || factoryCount > MAX_FACTORY_COUNT) {
+                    this.factoryCount = null;
+                } else {
+                    this.factoryCount = factoryCount % 2 == 0 ? factoryCount + 1 : factoryCount;
+                }
+                if (initialUnitCount == null || initialUnitCount < PLAYER_INIT_UNITS_MIN || initialUnitCount > PLAYER_INIT_UNITS_MAX) {
+                    this.initialUnitCount = null;
+                } else {
+                    this.initialUnitCount = initialUnitCount;
+                }
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof MapKey)) {
+                    return false;
+                }
+                MapKey other = (MapKey) o;
+                return seed == other.seed && splitMixRandom == other.splitMixRandom && Objects.equals(factoryCount, other.factoryCount) && Objects.equals(initialUnitCount, other.initialUnitCount);
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hash(seed, splitMixRandom, factoryCount, initialUnitCount);
+            }
+        }
+    }
+
+    /**
+     * Corpus of generated maps for balancing studies, one map per seed. Maps are generated in parallel, block by block,
+     * and written in blocks of columns so that an analysis can read the column it needs:
+     *
+     * <pre>
+     * header: magic, version, maxFactoryCount (league), splitMixRandom, factoryCount, initialUnitCount (-1 without)
+     * block:  mapCount, factoryTotal, linkTotal,
+     *         seeds, factoryCounts, radii (one per map),
+     *         x, y, owners, productionRates, unitCounts (one per factory),
+     *         distances (upper triangle of each matrix, row by row)
+     * end:    mapCount 0
+     * </pre>
+     *
+     * Summary statistics of the corpus are written as JSON next to it, in the file with the ".json" suffix.
+     */
+    static class MapCorpus {
+        static final int MAGIC = 0x47495452;
+        static final int VERSION = 1;
+        static final int MAPS_PER_BLOCK = 4096;
+
+        /**
+         * Generate the maps of the seeds firstSeed to firstSeed + count - 1, with the rng, factory_count and
+         * initial_unit_count of the given properties
+         */
+        public static CorpusStats generate(File file, long firstSeed, long count, Properties properties) throws IOException {
+            final boolean splitMixRandom = RNG_SPLITMIX.equals(properties.getProperty("rng"));
+            final Integer factoryCount = properties.getProperty("factory_count") == null ? null : Integer.valueOf(properties.getProperty("factory_count"));
+            final Integer initialUnitCount = properties.getProperty("initial_unit_count") == null ? null
+                    : Integer.valueOf(properties.getProperty("initial_unit_count"));
+
+            CorpusStats stats = new CorpusStats();
+            int parallelism = ForkJoinPool.commonPool().getParallelism() + 1;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeByte(MAX_FACTORY_COUNT);
+                out.writeBoolean(splitMixRandom);
+                out.writeInt(factoryCount == null ? -1 : factoryCount);
+                out.writeInt(initialUnitCount == null ? -1 : initialUnitCount);
+
+                long blockCount = (count + MAPS_PER_BLOCK - 1) / MAPS_PER_BLOCK;
+                for (long wave = 0; wave < blockCount; wave += parallelism) {
+                    final long waveSeed = firstSeed + wave * MAPS_PER_BLOCK;
+                    final long waveEnd = firstSeed + count;
+                    // The blocks of a wave are generated concurrently, then written in order
+                    List<Block> blocks = IntStream.range(0, (int) Math.min(parallelism, blockCount - wave)).parallel()
+                            .mapToObj(new IntFunction<Block>() {
+                                @Override
+                                public Block apply(int index) {
+                                    long from = waveSeed + (long) index * MAPS_PER_BLOCK;
+                                    return new Block(from, Math.min(from + MAPS_PER_BLOCK, waveEnd), splitMixRandom, factoryCount,
+                                            initialUnitCount);
+                                }
+                            }).collect(Collectors.<Block> toList());
+                    for (Block block : blocks) {
+                        block.write(out);
+                        stats.merge(block.stats);
+                    }
+                }
+                out.writeInt(0);
+            }
+            stats.writeJson(new File(file.getPath() + ".json"));
+            return stats;
+        }
+
+        /**
+         * Read the maps of a corpus, in seed order
+         */
+        public static void read(File file, MapVisitor visitor) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                    throw new IOException("Not a map corpus: " + file);
+                }
+                in.readByte();
+                in.readBoolean();
+                in.readInt();
+                in.readInt();
+                for (int mapCount = in.readInt(); mapCount > 0; mapCount = in.readInt()) {
+                    int factoryTotal = in.readInt();
+                    int linkTotal = in.readInt();
+                    long[] seeds = new long[mapCount];
+                    int[] factoryCounts = new int[mapCount];
+                    int[] radii = new int[mapCount];
+                    for (int i = 0; i < mapCount; i++) {
+                        seeds[i] = in.readLong();
+                    }
+                    for (int i = 0; i < mapCount; i++) {
+                        factoryCounts[i] = in.readUnsignedByte();
+                    }
+                    for (int i = 0; i < mapCount; i++) {
+                        radii[i] = in.readShort();
+                    }
+                    int[][] columns = new int[5][factoryTotal];
+                    for (int i = 0; i < factoryTotal; i++) {
+                        columns[0][i] = in.readShort();
+                    }
+                    for (int i = 0; i < factoryTotal; i++) {
+                        columns[1][i] = in.readShort();
+                    }
+                    for (int i = 0; i < factoryTotal; i++) {
+                        columns[2][i] = in.readByte();
+                    }
+                    for (int i = 0; i < factoryTotal; i++) {
+                        columns[3][i] = in.readByte();
+                    }
+                    for (int i = 0; i < factoryTotal; i++) {
+                        columns[4][i] = in.readShort();
+                    }
+                    byte[] links = new byte[linkTotal];
+                    in.readFully(links);
+
+                    int factory = 0;
+                    int link = 0;
+                    for (int i = 0; i < mapCount; i++) {
+                        int n = factoryCounts[i];
+                        int[] distances = new int[n * n];
+                        for (int j = 0; j < n; j++) {
+                            for (int k = j + 1; k < n; k++) {
+                                distances[j * n + k] = distances[k * n + j] = links[link++] & 0xFF;
+                            }
+                        }
+                        visitor.visit(seeds[i], new GameMap(radii[i], Arrays.copyOfRange(columns[0], factory, factory + n),
+                                Arrays.copyOfRange(columns[1], factory, factory + n), Arrays.copyOfRange(columns[2], factory, factory + n),
+                                Arrays.copyOfRange(columns[4], factory, factory + n), Arrays.copyOfRange(columns[3], factory, factory + n),
+                                distances));
+                        factory += n;
+                    }
+                }
+            }
+        }
+
+        interface MapVisitor {
+            void visit(long seed, GameMap map);
+        }
+
+        /**
+         * Maps of consecutive seeds, generated by one thread
+         */
+        private static class Block {
+            private final long firstSeed;
+            private final GameMap[] maps;
+            private final CorpusStats stats = new CorpusStats();
+
+            public Block(long from, long to, boolean splitMixRandom, Integer factoryCount, Integer initialUnitCount) {
+                this.firstSeed = from;
+                this.maps = new GameMap[(int) (to - from)];
+                MapGenerator generator = new MapGenerator();
+                for (int i = 0; i < maps.length; i++) {
+                    long seed = from + i;
+                    Rng random = splitMixRandom ? new SplitMixRng(seed) : new LegacyRng(seed);
+                    maps[i] = generator.generate(random, factoryCount, initialUnitCount);
+                    stats.add(maps[i]);
+                }
+            }
+
+            public void write(DataOutputStream out) throws IOException {
+                int factoryTotal = 0;
+                int linkTotal = 0;
+                for (GameMap map : maps) {
+                    int n = map.getFactoryCount();
+                    factoryTotal += n;
+                    linkTotal += n * (n - 1) / 2;
+                }
+                out.writeInt(maps.length);
+                out.writeInt(factoryTotal);
+                out.writeInt(linkTotal);
+                for (int i = 0; i < maps.length; i++) {
+                    out.writeLong(firstSeed + i);
+                }
+                for (GameMap map : maps) {
+                    out.writeByte(map.getFactoryCount());
+                }
+                for (GameMap map : maps) {
+                    out.writeShort(map.radius);
+                }
+                for (GameMap map : maps) {
+                    for (int x : map.x) {
+                        out.writeShort(x);
+                    }
+                }
+                for (GameMap map : maps) {
+                    for (int y : map.y) {
+                        out.writeShort(y);
+                    }
+                }
+                for (GameMap map : maps) {
+                    for (int owner : map.owners) {
+                        out.writeByte(owner);
+                    }
+                }
+                for (GameMap map : maps) {
+                    for (int productionRate : map.productionRates) {
+                        out.writeByte(productionRate);
+                    }
+                }
+                for (GameMap map : maps) {
+                    for (int unitCount : map.unitCounts) {
+                        out.writeShort(unitCount);
+                    }
+                }
+                for (GameMap map : maps) {
+                    int n = map.getFactoryCount();
+                    for (int j = 0; j < n; j++) {
+                        for (int k = j + 1; k < n; k++) {
+                            out.writeByte(map.distances[j * n + k]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Summary statistics of a map corpus. Every statistic is a table of counts indexed by value, values beyond the table
+     * are counted in its last entry.
+     */
+    static class CorpusStats {
+        private static final int MAX_DISTANCE = 31;
+
+        private long maps;
+        private final long[] factoryCounts = new long[MAX_FACTORY_COUNT + 2];
+        private final long[] totalProductionRates = new long[(MAX_FACTORY_COUNT + 1) * MAX_PRODUCTION_RATE + 1];
+        private final long[] initialUnitCounts = new long[PLAYER_INIT_UNITS_MAX + 1];
+        // Distance between the two players' factories, and between each factory and its mirror
+        private final long[] playerDistances = new long[MAX_DISTANCE + 1];
+        private final long[] mirrorDistances = new long[MAX_DISTANCE + 1];
+
+        public void add(GameMap map) {
+            int n = map.getFactoryCount();
+            maps++;
+            factoryCounts[Math.min(n, factoryCounts.length - 1)]++;
+            int totalProductionRate = 0;
+            for (int productionRate : map.productionRates) {
+                totalProductionRate += productionRate;
+            }
+            totalProductionRates[Math.min(totalProductionRate, totalProductionRates.length - 1)]++;
+            initialUnitCounts[Math.min(map.unitCounts[1], initialUnitCounts.length - 1)]++;
+            // Factories 1 and 2 are the players' ones, then the other mirrored pairs follow
+            playerDistances[Math.min(map.distances[1 * n + 2], MAX_DISTANCE)]++;
+            for (int i = 1; i + 1 < n; i += 2) {
+                mirrorDistances[Math.min(map.distances[i * n + i + 1], MAX_DISTANCE)]++;
+            }
+        }
+
+        public void merge(CorpusStats other) {
+            maps += other.maps;
+            add(factoryCounts, other.factoryCounts);
+            add(totalProductionRates, other.totalProductionRates);
+            add(initialUnitCounts, other.initialUnitCounts);
+            add(playerDistances, other.playerDistances);
+            add(mirrorDistances, other.mirrorDistances);
+        }
+
+        private static void add(long[] counts, long[] other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other[i];
+            }
+        }
+
+        public long getMapCount() {
+            return maps;
+        }
+
+        public String toJson() {
+            StringBuilder out = new StringBuilder();
+            out.append("{\"maps\":").append(maps);
+            appendJson(out.append(",\"factoryCounts\":"), factoryCounts);
+            appendJson(out.append(",\"totalProductionRates\":"), totalProductionRates);
+            appendJson(out.append(",\"initialUnitCounts\":"), initialUnitCounts);
+            appendJson(out.append(",\"playerDistances\":"), playerDistances);
+            appendJson(out.append(",\"mirrorDistances\":"), mirrorDistances);
+            return out.append('}').toString();
+        }
+
+        /**
+         * Only the values counted at least once are listed, as "value": count
+         */
+        private static void appendJson(StringBuilder out, long[] counts) {
+            out.append('{');
+            boolean first = true;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    out.append(first ? "\"" : ",\"").append(i).append("\":").append(counts[i]);
+                    first = false;
+                }
+            }
+            out.append('}');
+        }
+
+        public void writeJson(File file) throws IOException {
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(toJson().getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Streams training samples of games to chunked columnar files. A sample is taken at each turn: the state before the
+     * turn and the actions parsed for it, labeled with the outcome of its game. The thread playing a game keeps its
+     * samples until the game ends. Then the outcome is back-filled and the game is handed to a single writer thread
+     * through a bounded queue. A full queue blocks the thread ending a game, so the memory of the exporter stays bounded
+     * when the games end faster than the chunks are written.
+     * <p>
+     * Each chunk file (dataset-00000.bin, dataset-00001.bin...) holds whole games, and about SAMPLES_PER_CHUNK samples.
+     * Its sections are columns of big-endian values:
+     * <ul>
+     * <li>header: MAGIC (int), VERSION and FACTORY_WIDTH (bytes), then the game, sample and action counts (ints)</li>
+     * <li>games: seed (long), factory count (byte), sample count (int), winner and eliminated player or -1 (bytes),
+     * final scores of both players (2 ints)</li>
+     * <li>samples: the COLUMNS, with COLUMN_WIDTHS values of COLUMN_BYTES bytes per sample</li>
+     * <li>actions, by sample, then player, with the moves first, then bombs, then increases: type (byte, MOVE, BOMB or
+     * INC), source and destination (signed bytes, NO_DESTINATION for INC), units (int)</li>
+     * </ul>
+     * Factory columns are padded with zeros up to FACTORY_WIDTH factories. The owner column follows
+     * Factory.toPlayerString for player 0: 1 for player 0, -1 for player 1 and 0 for neutral. Per-player factory columns
+     * hold the values for player 0, then for player 1. The outcome is 1 when player 0 won, -1 when player 1 won, and 0
+     * for a draw.
+     */
+    static class DatasetExporter implements Closeable {
+        static final int MAGIC = 0x47495444;
+        static final int VERSION = 2;
+        static final int SAMPLES_PER_CHUNK = 1 << 16;
+        static final int FACTORY_WIDTH = MAX_FACTORY_COUNT + 1;
+
+        static final int MOVE = 0;
+        static final int BOMB = 1;
+        static final int INC = 2;
+        static final int NO_DESTINATION = -1;
+
+        static final int GAME = 0;
+        static final int TURN = 1;
+        static final int REMAINING_BOMBS = 2;
+        static final int OWNER = 3;
+        static final int UNITS = 4;
+        static final int PRODUCTION = 5;
+        static final int DISABLED = 6;
+        // Units of the troops heading to the factory, remaining turns of the closest one, and bombs heading to it
+        static final int INCOMING_UNITS = 7;
+        static final int NEAREST_ARRIVAL = 8;
+        static final int INCOMING_BOMBS = 9;
+        static final int ACTION_COUNT = 10;
+        static final int OUTCOME = 11;
+        static final String[] COLUMNS = { "game", "turn", "remainingBombs", "owner", "units", "production", "disabled", "incomingUnits",
+                "nearestArrival", "incomingBombs", "actionCount", "outcome" };
+        static final int[] COLUMN_WIDTHS = { 1, 1, 2, FACTORY_WIDTH, FACTORY_WIDTH, FACTORY_WIDTH, FACTORY_WIDTH, 2 * FACTORY_WIDTH,
+                2 * FACTORY_WIDTH, 2 * FACTORY_WIDTH, 2, 1 };
+        static final int[] COLUMN_BYTES = { 4, 4, 1, 1, 4, 1, 1, 4, 1, 1, 4, 1 };
+
+        private static final GameSamples END = new GameSamples(0, 0);
+
+        private final File directory;
+        private final BlockingQueue<GameSamples> queue;
+        private final Thread writer;
+        private volatile IOException failure;
+
+        // Owned by the writer thread
+        private final List<GameSamples> chunk = new ArrayList<>();
+        private int chunkSamples;
+        private int chunkIndex;
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+        /**
+         * @param queueCapacity
+         *            the number of ended games waiting for the writer thread, beyond which ending a game blocks
+         */
+        public DatasetExporter(File directory, int queueCapacity) {
+            this.directory = directory;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeGames();
+                }
+            }, "dataset-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        public GameSamples startGame(long seed, int factoryCount) {
+            return new GameSamples(seed, factoryCount);
+        }
+
+        /**
+         * Hand an ended game to the writer thread, waiting while the queue is full
+         */
+        public void submit(GameSamples game) {
+            if (failure != null) {
+                throw new UncheckedIOException("Cannot write the dataset " + directory, failure);
+            }
+            try {
+                queue.put(game);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while exporting a game", e);
+            }
+        }
+
+        /**
+         * Write the games already submitted, and stop the writer thread
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                queue.put(END);
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing the dataset " + directory);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void writeGames() {
+            boolean end = false;
+            while (!end) {
+                GameSamples game;
+                try {
+                    game = queue.take();
+                } catch (InterruptedException e) {
+                    failure = new InterruptedIOException("Interrupted dataset writer");
+                    return;
+                }
+                end = game == END;
+                if (!end) {
+                    chunk.add(game);
+                    chunkSamples += game.sampleCount;
+                }
+                // After a failure, the games are still taken so that submit does not block
+                if (failure == null && (end ? !chunk.isEmpty() : chunkSamples >= SAMPLES_PER_CHUNK)) {
+                    try {
+                        writeChunk();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                if (failure != null) {
+                    chunk.clear();
+                }
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            int actionCount = 0;
+            for (GameSamples game : chunk) {
+                actionCount += game.actionCount;
+            }
+            int sampleBytes = 0;
+            for (int column = 0; column < COLUMNS.length; column++) {
+                sampleBytes += COLUMN_WIDTHS[column] * COLUMN_BYTES[column];
+            }
+            int size = 4 + 1 + 1 + 4 + 4 + 4 + chunk.size() * (8 + 1 + 4 + 1 + 1 + 2 * 4) + chunkSamples * sampleBytes
+                    + actionCount * (1 + 1 + 1 + 4);
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+            }
+            buffer.clear();
+
+            buffer.putInt(MAGIC);
+            buffer.put((byte) VERSION);
+            buffer.put((byte) FACTORY_WIDTH);
+            buffer.putInt(chunk.size());
+            buffer.putInt(chunkSamples);
+            buffer.putInt(actionCount);
+
+            for (GameSamples game : chunk) {
+                buffer.putLong(game.seed);
+            }
+            for (GameSamples game : chunk) {
+                buffer.put((byte) game.factoryCount);
+            }
+            for (GameSamples game : chunk) {
+                buffer.putInt(game.sampleCount);
+            }
+            for (GameSamples game : chunk) {
+                buffer.put((byte) game.winner);
+            }
+            for (GameSamples game : chunk) {
+                buffer.put((byte) game.eliminated);
+            }
+            for (GameSamples game : chunk) {
+                buffer.putInt(game.scores[0]).putInt(game.scores[1]);
+            }
+
+            for (int column = 0; column < COLUMNS.length; column++) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    GameSamples game = chunk.get(i);
+                    int length = game.sampleCount * COLUMN_WIDTHS[column];
+                    if (column == GAME) {
+                        for (int j = 0; j < length; j++) {
+                            buffer.putInt(i);
+                        }
+                    } else if (COLUMN_BYTES[column] == 1) {
+                        int[] values = game.columns[column];
+                        for (int j = 0; j < length; j++) {
+                            buffer.put((byte) values[j]);
+                        }
+                    } else {
+                        buffer.asIntBuffer().put(game.columns[column], 0, length);
+                        buffer.position(buffer.position() + 4 * length);
+                    }
+                }
+            }
+
+            // Actions are stored by 4 values: type, source, destination, units
+            for (int field = 0; field < 4; field++) {
+                for (GameSamples game : chunk) {
+                    for (int i = field; i < 4 * game.actionCount; i += 4) {
+                        if (field == 3) {
+                            buffer.putInt(game.actions[i]);
+                        } else {
+                            buffer.put((byte) game.actions[i]);
+                        }
+                    }
+                }
+            }
+
+            buffer.flip();
+            File file = new File(directory, String.format(Locale.ROOT, "dataset-%05d.bin", chunkIndex++));
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            chunk.clear();
+            chunkSamples = 0;
+        }
+
+        /**
+         * Samples of one game, written by the thread playing it
+         */
+        static class GameSamples {
+            private static final int INITIAL_CAPACITY = 64;
+
+            private final long seed;
+            private final int factoryCount;
+            // The game column is written from the position of the game in its chunk
+            private final int[][] columns = new int[COLUMNS.length][];
+            private int sampleCount;
+            private int[] actions = new int[4 * INITIAL_CAPACITY];
+            private int actionCount;
+            private int winner = -1;
+            private int eliminated = -1;
+            private final int[] scores = new int[2];
+
+            GameSamples(long seed, int factoryCount) {
+                this.seed = seed;
+                this.factoryCount = factoryCount;
+                for (int column = GAME + 1; column < COLUMNS.length; column++) {
+                    columns[column] = new int[INITIAL_CAPACITY * COLUMN_WIDTHS[column]];
+                }
+            }
+
+            /**
+             * @return the index of a new sample, whose values are all 0
+             */
+            public int addSample() {
+                if ((sampleCount + 1) * COLUMN_WIDTHS[TURN] > columns[TURN].length) {
+                    for (int column = GAME + 1; column < COLUMNS.length; column++) {
+                        columns[column] = Arrays.copyOf(columns[column], columns[column].length * 2);
+                    }
+                }
+                return sampleCount++;
+            }
+
+            public int getSampleCount() {
+                return sampleCount;
+            }
+
+            public int get(int column, int sample, int index) {
+                return columns[column][sample * COLUMN_WIDTHS[column] + index];
+            }
+
+            public void set(int column, int sample, int index, int value) {
+                columns[column][sample * COLUMN_WIDTHS[column] + index] = value;
+            }
+
+            public void add(int column, int sample, int index, int value) {
+                columns[column][sample * COLUMN_WIDTHS[column] + index] += value;
+            }
+
+            public void addAction(int type, int source, int destination, int units) {
+                if (4 * actionCount == actions.length) {
+                    actions = Arrays.copyOf(actions, actions.length * 2);
+                }
+                actions[4 * actionCount] = type;
+                actions[4 * actionCount + 1] = source;
+                actions[4 * actionCount + 2] = destination;
+                actions[4 * actionCount + 3] = units;
+                actionCount++;
+            }
+
+            /**
+             * Back-fill the outcome label of every sample
+             *
+             * @param winner
+             *            the index of the winner, or -1 for a draw
+             * @param eliminated
+             *            the index of the player eliminated by an invalid output or a timeout, or -1
+             */
+            public void setOutcome(int winner, int eliminated, int score0, int score1) {
+                this.winner = winner;
+                this.eliminated = eliminated;
+                this.scores[0] = score0;
+                this.scores[1] = score1;
+                Arrays.fill(columns[OUTCOME], 0, sampleCount, winner < 0 ? 0 : 1 - 2 * winner);
+            }
+        }
+    }
+
+    /**
+     * Histogram of positive values with a fixed memory footprint, in the HdrHistogram style: values are counted in
+     * buckets whose width grows with the value, so that each one is recorded within 1/16 of its magnitude.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int HALF_SUB_BUCKET_COUNT = 1 << (SUB_BUCKET_BITS - 1);
+
+        private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKET_COUNT];
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max;
+
+        private static int shift(long value) {
+            return Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        }
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            int shift = shift(value);
+            counts[(shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift)]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        public void merge(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return the highest value of the bucket holding the given percentile, capped by the maximum recorded value
+         */
+        public long getValueAtPercentile(double percentile) {
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i];
+                if (total >= rank) {
+                    int shift = Math.max(0, (i >> (SUB_BUCKET_BITS - 1)) - 1);
+                    long subBucket = i - ((long) shift << (SUB_BUCKET_BITS - 1));
+                    return Math.min(max, ((subBucket + 1) << shift) - 1);
+                }
+            }
+            return max;
+        }
+
+        public StringBuilder appendJson(StringBuilder out) {
+            out.append("{\"count\":").append(count);
+            if (count > 0) {
+                out.append(",\"min\":").append(min);
+                out.append(",\"mean\":").append(String.format(Locale.ROOT, "%.1f", getMean()));
+                out.append(",\"p50\":").append(getValueAtPercentile(50));
+                out.append(",\"p90\":").append(getValueAtPercentile(90));
+                out.append(",\"p99\":").append(getValueAtPercentile(99));
+                out.append(",\"p999\":").append(getValueAtPercentile(99.9));
+                out.append(",\"max\":").append(max);
+            }
+            return out.append('}');
+        }
+    }
+
+    /**
+     * Optional instrumentation of the referee turns: time of each phase, entities in flight and bytes allocated by the
+     * referee per turn. A game without metrics only pays a null check per phase.
+     * <p>
+     * The metrics of a game are recorded by its thread only. The metrics of several games are combined with merge, which
+     * can be called concurrently, for example by the tasks of a BatchRunner.
+     */
+    static class TurnMetrics {
+        static enum Phase {
+            PARSE, INPUT, MOVE, DISABLED_COUNTDOWN, ORDERS, PRODUCTION, BATTLES, BOMBS, SCORE, END_CHECK, VIEW
+        }
+
+        private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationBean();
+
+        private final Histogram[] phases = new Histogram[Phase.values().length];
+        private final Histogram troops = new Histogram();
+        private final Histogram bombs = new Histogram();
+        private final Histogram allocatedBytes = new Histogram();
+        private long matches;
+
+        // Start of the current phase, and allocation counter at the start of the current section
+        private long phaseStart;
+        private long allocationStart;
+        private long turnAllocatedBytes;
+
+        public TurnMetrics() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram();
+            }
+        }
+
+        private static com.sun.management.ThreadMXBean allocationBean() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+                if (allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled()) {
+                    return allocations;
+                }
+            }
+            return null;
+        }
+
+        private static long allocatedBytes() {
+            return ALLOCATIONS == null ? 0 : ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        public void startMatch() {
+            matches++;
+            turnAllocatedBytes = 0;
+        }
+
+        /**
+         * Start a timed section of the referee, made of one or several phases
+         */
+        public void begin() {
+            allocationStart = allocatedBytes();
+            phaseStart = System.nanoTime();
+        }
+
+        /**
+         * End the current phase, the next one starts now
+         */
+        public void lap(Phase phase) {
+            long now = System.nanoTime();
+            phases[phase.ordinal()].record(now - phaseStart);
+            phaseStart = now;
+        }
+
+        /**
+         * End the last phase of the section
+         */
+        public void end(Phase phase) {
+            lap(phase);
+            turnAllocatedBytes += allocatedBytes() - allocationStart;
+        }
+
+        /**
+         * Record the entities in flight at the end of a turn, and the bytes allocated by the sections since the previous
+         * turn
+         */
+        public void endTurn(int troopCount, int bombCount) {
+            troops.record(troopCount);
+            bombs.record(bombCount);
+            if (ALLOCATIONS != null) {
+                allocatedBytes.record(turnAllocatedBytes);
+            }
+            turnAllocatedBytes = 0;
+        }
+
+        public Histogram getPhase(Phase phase) {
+            return phases[phase.ordinal()];
+        }
+
+        public synchronized void merge(TurnMetrics other) {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i].merge(other.phases[i]);
+            }
+            troops.merge(other.troops);
+            bombs.merge(other.bombs);
+            allocatedBytes.merge(other.allocatedBytes);
+            matches += other.matches;
+        }
+
+        /**
+         * Phase times are in nanoseconds
+         */
+        public synchronized String toJson() {
+            StringBuilder out = new StringBuilder();
+            out.append("{\"matches\":").append(matches).append(",\"turns\":").append(troops.getCount());
+            out.append(",\"phases\":{");
+            for (Phase phase : Phase.values()) {
+                out.append(phase.ordinal() == 0 ? "\"" : ",\"").append(phase.name().toLowerCase(Locale.ROOT)).append("\":");
+                phases[phase.ordinal()].appendJson(out);
+            }
+            out.append("},\"troops\":");
+            troops.appendJson(out);
+            out.append(",\"bombs\":");
+            bombs.appendJson(out);
+            if (ALLOCATIONS != null) {
+                out.append(",\"allocatedBytes\":");
+                allocatedBytes.appendJson(out);
+            }
+            return out.append('}').toString();
+        }
+
+        public void writeJson(File file) throws IOException {
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(toJson().getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * In-process bot played by the BatchRunner. It receives the same lines as a bot reading its standard input.
+     */
+    interface Bot {
+        void init(int playerIdx, String[] initInput);
+
+        /**
+         * @return the output line of the turn
+         */
+        String play(String[] input);
+    }
+
+    /**
+     * Creates a fresh bot for every match, bots may keep state between turns
+     */
+    interface BotFactory {
+        Bot create();
+    }
+
+    /**
+     * Outcome of a headless match
+     */
+    static class MatchResult {
+        private final Properties configuration;
+        private final int[] scores;
+        private final int winner;
+        private final int eliminated;
+        private final int rounds;
+
+        public MatchResult(Properties configuration, int[] scores, int winner, int eliminated, int rounds) {
+            this.configuration = configuration;
+            this.scores = scores;
+            this.winner = winner;
+            this.eliminated = eliminated;
+            this.rounds = rounds;
+        }
+
+        public Properties getConfiguration() {
+            return configuration;
+        }
+
+        public int getScore(int playerIdx) {
+            return scores[playerIdx];
+        }
+
+        /**
+         * @return the index of the winner, or -1 for a draw
+         */
+        public int getWinner() {
+            return winner;
+        }
+
+        /**
+         * @return the index of the player eliminated by an invalid output, a crash or a missing output, or -1
+         */
+        public int getEliminated() {
+            return eliminated;
+        }
+
+        public int getRounds() {
+            return rounds;
+        }
+    }
+
+    /**
+     * Win/loss/score statistics aggregated over a batch of matches
+     */
+    static class BatchResult {
+        private int games;
+        private int draws;
+        private final int[] wins = new int[2];
+        private final int[] eliminations = new int[2];
+        private final long[] totalScores = new long[2];
+        private long totalRounds;
+
+        public void add(MatchResult result) {
+            games++;
+            if (result.winner < 0) {
+                draws++;
+            } else {
+                wins[result.winner]++;
+            }
+            if (result.eliminated >= 0) {
+                eliminations[result.eliminated]++;
+            }
+            for (int i = 0; i < totalScores.length; i++) {
+                totalScores[i] += result.scores[i];
+            }
+            totalRounds += result.rounds;
+        }
+
+        public void merge(BatchResult other) {
+            games += other.games;
+            draws += other.draws;
+            for (int i = 0; i < wins.length; i++) {
+                wins[i] += other.wins[i];
+                eliminations[i] += other.eliminations[i];
+                totalScores[i] += other.totalScores[i];
+            }
+            totalRounds += other.totalRounds;
+        }
+
+        public int getGames() {
+            return games;
+        }
+
+        public int getWins(int playerIdx) {
+            return wins[playerIdx];
+        }
+
+        public int getLosses(int playerIdx) {
+            return games - draws - wins[playerIdx];
+        }
+
+        public int getDraws() {
+            return draws;
+        }
+
+        public int getEliminations(int playerIdx) {
+            return eliminations[playerIdx];
+        }
+
+        public double getAverageScore(int playerIdx) {
+            return games == 0 ? 0 : (double) totalScores[playerIdx] / games;
+        }
+
+        public double getAverageRounds() {
+            return games == 0 ? 0 : (double) totalRounds / games;
+        }
+
+        @Override
+        public String toString() {
+            return "games=" + games + " wins=" + wins[0] + "/" + wins[1] + " draws=" + draws + " eliminations=" + eliminations[0] + "/"
+                    + eliminations[1] + " avgScores=" + getAverageScore(0) + "/" + getAverageScore(1) + " avgRounds=" + getAverageRounds();
+        }
+    }
+
+    /**
+     * Optional collaborators of a match played by BatchRunner.playMatch, none by default
+     */
+    static class MatchOptions {
+        private MapCache mapCache;
+        private TurnMetrics metrics;
+        private TurnPipeline pipeline;
+        private DatasetExporter datasetExporter;
+
+        /**
+         * @param mapCache
+         *            cache of the generated maps, or null
+         */
+        public void setMapCache(MapCache mapCache) {
+            this.mapCache = mapCache;
+        }
+
+        /**
+         * @param metrics
+         *            metrics recording the turns of the match on the thread playing it, or null
+         */
+        public void setMetrics(TurnMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * @param pipeline
+         *            pipeline playing the players of each turn concurrently, or null to play them one after another
+         */
+        public void setTurnPipeline(TurnPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        /**
+         * @param datasetExporter
+         *            exporter of the turns of the match, or null
+         */
+        public void setDatasetExporter(DatasetExporter datasetExporter) {
+            this.datasetExporter = datasetExporter;
+        }
+    }
+
+    /**
+     * Plays matches between two in-process bots without the referee protocol. Matches are spread over a work-stealing
+     * ForkJoinPool, each one configured with the same properties as initReferee (seed, factory_count, initial_unit_count).
+     */
+    static class BatchRunner {
+        private static final int MATCHES_PER_TASK = 4;
+
+        private final ForkJoinPool pool;
+        private final BotFactory[] botFactories;
+        private final MapCache mapCache = new MapCache();
+        private TurnMetrics metrics;
+        private File metricsFile;
+        private TurnPipeline pipeline;
+        private DatasetExporter datasetExporter;
+
+        public BatchRunner(BotFactory bot0, BotFactory bot1, int parallelism) {
+            this.pool = new ForkJoinPool(parallelism);
+            this.botFactories = new BotFactory[] { bot0, bot1 };
+        }
+
+        public BatchRunner(BotFactory bot0, BotFactory bot1) {
+            this(bot0, bot1, Runtime.getRuntime().availableProcessors());
+        }
+
+        public static List<Properties> seeds(long firstSeed, int count) {
+            List<Properties> configurations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Properties prop = new Properties();
+                prop.setProperty("seed", String.valueOf(firstSeed + i));
+                configurations.add(prop);
+            }
+            return configurations;
+        }
+
+        /**
+         * Merge the metrics of the matches played by run into the given metrics, written as JSON to the file at the end of
+         * each batch
+         * 
+         * @param file
+         *            the JSON file, or null
+         */
+        public void setMetrics(TurnMetrics metrics, File file) {
+            this.metrics = metrics;
+            this.metricsFile = file;
+        }
+
+        /**
+         * Play the players of each turn concurrently, which lowers the latency of the matches rather than the throughput
+         * of the batch
+         */
+        public void setTurnPipeline(TurnPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        /**
+         * Export the turns of the matches played by run. The exporter is not closed by the runner.
+         */
+        public void setDatasetExporter(DatasetExporter datasetExporter) {
+            this.datasetExporter = datasetExporter;
+        }
+
+        public BatchResult run(List<Properties> configurations) {
+            BatchResult result = pool.invoke(new BatchTask(configurations, 0, configurations.size()));
+            if (metrics != null && metricsFile != null) {
+                try {
+                    metrics.writeJson(metricsFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot write the metrics " + metricsFile, e);
+                }
+            }
+            return result;
+        }
+
+        public void shutdown() {
+            pool.shutdown();
+        }
+
+        /**
+         * Play a full match, following the same turn sequence as the referee protocol
+         */
+        public static MatchResult playMatch(Properties configuration, Bot[] bots, MatchOptions options) {
+            Game game = new Game();
+            game.setMapCache(options.mapCache);
+            game.setMetrics(options.metrics);
+            game.setDatasetExporter(options.datasetExporter);
+            game.init(bots.length, configuration);
+            TurnPipeline pipeline = options.pipeline;
+            for (int i = 0; i < bots.length; i++) {
+                bots[i].init(i, game.getInitInputForPlayer(i));
+            }
+
+            int eliminated = -1;
+            int round = 0;
+            rounds: while (round < MAX_ROUNDS) {
+                if (pipeline != null) {
+                    try {
+                        eliminated = pipeline.playTurn(game, bots);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted match", e);
+                    }
+                    if (eliminated >= 0) {
+                        break;
+                    }
+                } else {
+                    for (int i = 0; i < bots.length; i++) {
+                        String output;
+                        try {
+                            output = bots[i].play(game.getInputForPlayer(i));
+                        } catch (RuntimeException e) {
+                            output = null;
+                        }
+                        try {
+                            if (output == null) {
+                                // Same as a timeout
+                                game.setDead(i);
+                                eliminated = i;
+                                break rounds;
+                            }
+                            game.handlePlayerOutput(i, new String[] { output });
+                        } catch (ActionException e) {
+                            eliminated = i;
+                            break rounds;
+                        }
+                    }
+                }
+                round++;
+                if (game.updateGame()) {
+                    break;
+                }
+            }
+
+            return getResult(configuration, game, eliminated, round);
+        }
+
+        /**
+         * @param eliminated
+         *            the index of the player who lost by timeout or invalid output, or -1
+         */
+        static MatchResult getResult(Properties configuration, Game game, int eliminated, int round) {
+            int[] scores = new int[2];
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = game.getScore(i);
+            }
+            int winner;
+            if (eliminated >= 0) {
+                winner = 1 - eliminated;
+            } else if (scores[0] != scores[1]) {
+                winner = scores[0] > scores[1] ? 0 : 1;
+            } else {
+                winner = -1;
+            }
+            return new MatchResult(configuration, scores, winner, eliminated, round);
+        }
+
+        @SuppressWarnings("serial")
+        private class BatchTask extends RecursiveTask<BatchResult> {
+            private final List<Properties> configurations;
+            private final int from;
+            private final int to;
+
+            public BatchTask(List<Properties> configurations, int from, int to) {
+                this.configurations = configurations;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected BatchResult compute() {
+                if (to - from <= MATCHES_PER_TASK) {
+                    BatchResult result = new BatchResult();
+                    TurnMetrics taskMetrics = metrics == null ? null : new TurnMetrics();
+                    MatchOptions options = new MatchOptions();
+                    options.setMapCache(mapCache);
+                    options.setMetrics(taskMetrics);
+                    options.setTurnPipeline(pipeline);
+                    options.setDatasetExporter(datasetExporter);
+                    for (int i = from; i < to; i++) {
+                        Bot[] bots = { botFactories[0].create(), botFactories[1].create() };
+                        result.add(playMatch(configurations.get(i), bots, options));
+                    }
+                    if (taskMetrics != null) {
+                        metrics.merge(taskMetrics);
+                    }
+                    return result;
+                }
+                int middle = (from + to) >>> 1;
+                BatchTask left = new BatchTask(configurations, from, middle);
+                left.fork();
+                BatchResult result = new BatchTask(configurations, middle, to).compute();
+                result.merge(left.join());
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Sequential probability ratio test of the Elo difference between two bots, from pairs of games played on the same map
+     * with the sides swapped. The outcome of a pair is the number of half points scored by the first bot over both games
+     * (2 for a win, 1 for a draw), one of 5 values. Pairs rather than games are the samples of the test, because the two
+     * games of a pair are correlated by their shared map.
+     * <p>
+     * The log-likelihood ratio of H1 (elo1) against H0 (elo0) follows the normal approximation of the generalized SPRT:
+     * LLR = n (s1 - s0) (2 m - s0 - s1) / (2 v), where n is the number of pairs, m and v the mean and variance of the pair
+     * scores, and s0 and s1 the expected scores of the hypotheses. The mean and variance are estimated with half a pair of
+     * each outcome added, which keeps the variance positive and the first pairs from deciding the test on their own.
+     */
+    static class Sprt {
+        static final int PAIR_OUTCOMES = 5;
+
+        private final double elo0;
+        private final double elo1;
+        private final double lowerBound;
+        private final double upperBound;
+        private final int[] pairs = new int[PAIR_OUTCOMES];
+        private int pairCount;
+
+        /**
+         * @param alpha
+         *            the probability to accept H1 when H0 is true
+         * @param beta
+         *            the probability to accept H0 when H1 is true
+         */
+        public Sprt(double elo0, double elo1, double alpha, double beta) {
+            if (elo1 <= elo0) {
+                throw new IllegalArgumentException("elo1 must be greater than elo0: " + elo0 + ", " + elo1);
+            }
+            this.elo0 = elo0;
+            this.elo1 = elo1;
+            this.lowerBound = Math.log(beta / (1 - alpha));
+            this.upperBound = Math.log((1 - beta) / alpha);
+        }
+
+        /**
+         * @return the expected score of a bot stronger by the given Elo difference
+         */
+        public static double expectedScore(double elo) {
+            return 1 / (1 + Math.pow(10, -elo / 400));
+        }
+
+        /**
+         * @param halfPoints
+         *            the half points scored by the first bot over the two games of the pair, from 0 to 4
+         */
+        public void addPair(int halfPoints) {
+            pairs[halfPoints]++;
+            pairCount++;
+        }
+
+        public int getPairCount() {
+            return pairCount;
+        }
+
+        public int getPairs(int halfPoints) {
+            return pairs[halfPoints];
+        }
+
+        /**
+         * @return the average score of the first bot per game, or 0.5 before the first pair
+         */
+        public double getScore() {
+            if (pairCount == 0) {
+                return 0.5;
+            }
+            double total = 0;
+            for (int halfPoints = 0; halfPoints < PAIR_OUTCOMES; halfPoints++) {
+                total += pairs[halfPoints] * halfPoints;
+            }
+            return total / (4. * pairCount);
+        }
+
+        /**
+         * @return the Elo difference of the first bot matching its score
+         */
+        public double getElo() {
+            double score = Math.min(Math.max(getScore(), 1e-3), 1 - 1e-3);
+            return -400 * Math.log10(1 / score - 1);
+        }
+
+        public double getLlr() {
+            double weight = pairCount + PAIR_OUTCOMES / 2.;
+            double mean = 0;
+            for (int halfPoints = 0; halfPoints < PAIR_OUTCOMES; halfPoints++) {
+                mean += (pairs[halfPoints] + 0.5) * halfPoints / 4.;
+            }
+            mean /= weight;
+            double variance = 0;
+            for (int halfPoints = 0; halfPoints < PAIR_OUTCOMES; halfPoints++) {
+                double deviation = halfPoints / 4. - mean;
+                variance += (pairs[halfPoints] + 0.5) * deviation * deviation;
+            }
+            variance /= weight;
+            double s0 = expectedScore(elo0);
+            double s1 = expectedScore(elo1);
+            return pairCount * (s1 - s0) * (2 * mean - s0 - s1) / (2 * variance);
+        }
+
+        public double getLowerBound() {
+            return lowerBound;
+        }
+
+        public double getUpperBound() {
+            return upperBound;
+        }
+
+        /**
+         * @return 1 when H1 is accepted, -1 when H0 is accepted, and 0 while the test goes on
+         */
+        public int getDecision() {
+            double llr = getLlr();
+            return llr >= upperBound ? 1 : llr <= lowerBound ? -1 : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "pairs=%d %s elo=%.1f llr=%.2f [%.2f, %.2f] decision=%d", pairCount, Arrays.toString(pairs),
+                    getElo(), getLlr(), lowerBound, upperBound, getDecision());
+        }
+    }
+
+    /**
+     * Plays pairs of matches between in-process bots, as many at once as its parallelism, and schedules the next pairs from
+     * the results as they arrive. A pair plays the same seed twice with the sides swapped: maps are symmetric around their
+     * center, so each bot plays both starting positions of the map. The seed is set in a copy of the configuration, the
+     * properties of initReferee.
+     * <p>
+     * runSprt stops as soon as a Sprt between two bots is decided. runRoundRobin allocates the pairs among many bots to
+     * the pairing whose order is the most uncertain. The win/draw/loss table of the pairings accumulates over the runs.
+     * Pairs still running when a run stops are cancelled, and their results are discarded.
+     */
+    static class Tournament {
+        private static final int RATING_ITERATIONS = 100;
+
+        private final ForkJoinPool pool;
+        private final BotFactory[] botFactories;
+        private final Properties configuration;
+        private final MapCache mapCache = new MapCache();
+        private final int parallelism;
+        // By pairing: games won by the first bot against the second one, games drawn, and pairs scheduled but not recorded
+        private final int[][] wins;
+        private final int[][] draws;
+        private final int[][] scheduled;
+
+        public Tournament(BotFactory[] botFactories, Properties configuration, int parallelism) {
+            this.pool = new ForkJoinPool(parallelism);
+            this.botFactories = botFactories;
+            this.configuration = configuration;
+            this.parallelism = parallelism;
+            this.wins = new int[botFactories.length][botFactories.length];
+            this.draws = new int[botFactories.length][botFactories.length];
+            this.scheduled = new int[botFactories.length][botFactories.length];
+        }
+
+        /**
+         * Play pairs on the seeds from firstSeed until the test is decided or maxPairs pairs are played. The pairs are
+         * added to the test in seed order whatever order they end in, so the decision does not depend on the timing of
+         * the threads.
+         * 
+         * @return the test
+         */
+        public Sprt runSprt(int candidate, int baseline, Sprt sprt, long firstSeed, int maxPairs) throws InterruptedException {
+            CompletionService<PairTask> completion = new ExecutorCompletionService<>(pool);
+            Map<Integer, Future<PairTask>> running = new HashMap<>();
+            Map<Integer, PairTask> ended = new HashMap<>();
+            int submitted = 0;
+            int added = 0;
+            while (sprt.getDecision() == 0 && added < maxPairs) {
+                while (running.size() < parallelism && submitted < maxPairs) {
+                    running.put(submitted, completion.submit(new PairTask(candidate, baseline, firstSeed + submitted, submitted)));
+                    submitted++;
+                }
+                PairTask pair = take(completion);
+                running.remove(pair.index);
+                ended.put(pair.index, pair);
+                while (sprt.getDecision() == 0 && ended.containsKey(added)) {
+                    pair = ended.remove(added++);
+                    record(pair);
+                    sprt.addPair(pair.getHalfPoints());
+                }
+            }
+            for (Future<PairTask> pair : running.values()) {
+                pair.cancel(false);
+            }
+            return sprt;
+        }
+
+        /**
+         * Play pairs on the seeds from firstSeed, each one between the two bots whose order is the most uncertain, until
+         * the order of every pairing is known or maxPairs pairs are played. The uncertainty of a pairing is its z-score:
+         * the Elo difference of the bots over its standard error, estimated from the games of the pairing alone. A pairing
+         * with z-score zBound or more is known, and one without games has a z-score of 0, so every pairing gets played.
+         */
+        public void runRoundRobin(long firstSeed, int maxPairs, double zBound) throws InterruptedException {
+            CompletionService<PairTask> completion = new ExecutorCompletionService<>(pool);
+            int submitted = 0;
+            int running = 0;
+            while (true) {
+                while (running < parallelism && submitted < maxPairs) {
+                    int pairing = selectPairing(zBound);
+                    if (pairing < 0) {
+                        break;
+                    }
+                    int bot0 = pairing / botFactories.length;
+                    int bot1 = pairing % botFactories.length;
+                    scheduled[bot0][bot1]++;
+                    completion.submit(new PairTask(bot0, bot1, firstSeed + submitted, submitted));
+                    submitted++;
+                    running++;
+                }
+                if (running == 0) {
+                    break;
+                }
+                PairTask pair = take(completion);
+                running--;
+                scheduled[pair.bots[0]][pair.bots[1]]--;
+                record(pair);
+            }
+        }
+
+        /**
+         * @return the pairing with the lowest z-score below zBound, as bot0 * botCount + bot1 with bot0 < bot1, or -1
+         */
+        private int selectPairing(double zBound) {
+            double[] ratings = getRatings();
+            int selected = -1;
+            double selectedZ = zBound;
+            int selectedGames = 0;
+            for (int bot0 = 0; bot0 < botFactories.length; bot0++) {
+                for (int bot1 = bot0 + 1; bot1 < botFactories.length; bot1++) {
+                    // The pairs still running count as played, so that they are spread over the uncertain pairings
+                    int games = getGames(bot0, bot1) + 2 * scheduled[bot0][bot1];
+                    double z = 0;
+                    if (games > 0) {
+                        double score = Sprt.expectedScore(ratings[bot0] - ratings[bot1]);
+                        double standardError = 400 / Math.log(10) / Math.sqrt(games * score * (1 - score));
+                        z = Math.abs(ratings[bot0] - ratings[bot1]) / standardError;
+                    }
+                    if (z < selectedZ || z == selectedZ && selected >= 0 && games < selectedGames) {
+                        selected = bot0 * botFactories.length + bot1;
+                        selectedZ = z;
+                        selectedGames = games;
+                    }
+                }
+            }
+            return selected;
+        }
+
+        private static PairTask take(CompletionService<PairTask> completion) throws InterruptedException {
+            try {
+                return completion.take().get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Cannot play the match", e.getCause());
+            }
+        }
+
+        private void record(PairTask pair) {
+            for (int game = 0; game < pair.results.length; game++) {
+                // The first bot of the pair is player 1 in the second game
+                int winner = pair.results[game].getWinner();
+                int bot0 = pair.bots[game];
+                int bot1 = pair.bots[1 - game];
+                if (winner < 0) {
+                    draws[bot0][bot1]++;
+                    draws[bot1][bot0]++;
+                } else if (winner == 0) {
+                    wins[bot0][bot1]++;
+                } else {
+                    wins[bot1][bot0]++;
+                }
+            }
+        }
+
+        /**
+         * Fit the Bradley-Terry model of the games by minorization-maximization, a draw being half a win. A virtual draw
+         * is added to every pairing, which keeps the ratings finite when a bot won or lost all its games.
+         * 
+         * @return the Elo ratings of the bots, averaging 0
+         */
+        public double[] getRatings() {
+            int botCount = botFactories.length;
+            double[] strengths = new double[botCount];
+            Arrays.fill(strengths, 1);
+            for (int iteration = 0; iteration < RATING_ITERATIONS; iteration++) {
+                for (int bot0 = 0; bot0 < botCount; bot0++) {
+                    double points = 0;
+                    double weight = 0;
+                    for (int bot1 = 0; bot1 < botCount; bot1++) {
+                        if (bot1 != bot0) {
+                            points += wins[bot0][bot1] + 0.5 * (draws[bot0][bot1] + 1);
+                            weight += (getGames(bot0, bot1) + 1) / (strengths[bot0] + strengths[bot1]);
+                        }
+                    }
+                    strengths[bot0] = points / weight;
+                }
+            }
+            double[] ratings = new double[botCount];
+            double average = 0;
+            for (int bot = 0; bot < botCount; bot++) {
+                ratings[bot] = 400 * Math.log10(strengths[bot]);
+                average += ratings[bot] / botCount;
+            }
+            for (int bot = 0; bot < botCount; bot++) {
+                ratings[bot] -= average;
+            }
+            return ratings;
+        }
+
+        public int getBotCount() {
+            return botFactories.length;
+        }
+
+        public int getGames(int bot0, int bot1) {
+            return wins[bot0][bot1] + wins[bot1][bot0] + draws[bot0][bot1];
+        }
+
+        public int getWins(int bot0, int bot1) {
+            return wins[bot0][bot1];
+        }
+
+        public int getDraws(int bot0, int bot1) {
+            return draws[bot0][bot1];
+        }
+
+        public int getLosses(int bot0, int bot1) {
+            return wins[bot1][bot0];
+        }
+
+        public void shutdown() {
+            pool.shutdown();
+        }
+
+        /**
+         * Two matches on the same seed, the second one with the sides swapped
+         */
+        private class PairTask implements Callable<PairTask> {
+            private final int[] bots;
+            private final long seed;
+            private final int index;
+            private final MatchResult[] results = new MatchResult[2];
+
+            public PairTask(int bot0, int bot1, long seed, int index) {
+                this.bots = new int[] { bot0, bot1 };
+                this.seed = seed;
+                this.index = index;
+            }
+
+            @Override
+            public PairTask call() {
+                Properties game = new Properties();
+                game.putAll(configuration);
+                game.setProperty("seed", String.valueOf(seed));
+                MatchOptions options = new MatchOptions();
+                options.setMapCache(mapCache);
+                for (int i = 0; i < results.length; i++) {
+                    Bot[] players = { botFactories[bots[i]].create(), botFactories[bots[1 - i]].create() };
+                    results[i] = BatchRunner.playMatch(game, players, options);
+                }
+                return this;
+            }
+
+            /**
+             * @return the half points of the first bot over both matches, from 0 to 4
+             */
+            public int getHalfPoints() {
+                int halfPoints = 0;
+                for (int i = 0; i < results.length; i++) {
+                    int winner = results[i].getWinner();
+                    halfPoints += winner < 0 ? 1 : winner == i ? 2 : 0;
+                }
+                return halfPoints;
+            }
+        }
+    }
+
+    /**
+     * Plays the per-player part of the turns of in-process bots concurrently: building the input of each player, calling
+     * its bot and parsing its output only read the shared state of the game, and write the player's own action lists. The
+     * first player is handled by the calling thread, the others by the executor, and all of them are awaited before the
+     * caller plays updateGame.
+     * <p>
+     * The players who failed are killed after the barrier, in player order, which gives the same game as handling the
+     * players one after another: killing a player only makes its own factories neutral, so the actions parsed for the
+     * other players are the same. The phases of the pipeline are not recorded by the game's TurnMetrics, whose recording
+     * is single-threaded.
+     */
+    static class TurnPipeline {
+        private final ExecutorService executor;
+
+        public TurnPipeline(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        /**
+         * Play the actions of the bots up to the barrier, the caller then plays updateGame
+         * 
+         * @return the index of the first player who failed to answer or answered an invalid output, now dead, or -1
+         */
+        public int playTurn(final Game game, final Bot[] bots) throws InterruptedException {
+            final boolean[] failed = new boolean[bots.length];
+            List<Future<?>> players = new ArrayList<>(bots.length - 1);
+            for (int i = 1; i < bots.length; i++) {
+                final int playerIdx = i;
+                players.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        failed[playerIdx] = !playPlayer(game, playerIdx, bots[playerIdx]);
+                    }
+                }));
+            }
+            failed[0] = !playPlayer(game, 0, bots[0]);
+            for (Future<?> player : players) {
+                try {
+                    player.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Cannot play the turn", e.getCause());
+                }
+            }
+
+            for (int i = 0; i < bots.length; i++) {
+                if (failed[i]) {
+                    game.setDead(i);
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return false if the bot did not answer or answered an invalid output
+         */
+        private static boolean playPlayer(Game game, int playerIdx, Bot bot) {
+            StringBuilder input = new StringBuilder();
+            game.writeInputForPlayer(playerIdx, input);
+            String output;
+            try {
+                output = bot.play(Game.toLines(input));
+            } catch (RuntimeException e) {
+                output = null;
+            }
+            if (output == null) {
+                return false;
+            }
+            try {
+                game.readPlayerOutput(playerIdx, new String[] { output });
+                return true;
+            } catch (ActionException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Plays matches between bot programs run as child processes, speaking the referee protocol over their standard input
+     * and output, with the time limits of the referee. Each bot is served by its own thread blocked on its pipes: the
+     * inputs of both players are sent at once, then their outputs are awaited until the deadline of the turn. A bot that
+     * misses the deadline, exits or writes an invalid output loses the match, as with the referee.
+     * <p>
+     * The threads are virtual threads on JVMs providing them (Java 21 and later), so that thousands of concurrent bots
+     * do not need as many platform threads. Older JVMs fall back to a cached pool of daemon platform threads.
+     */
+    static class ProcessMatchDriver {
+        private final ExecutorService executor = newExecutor();
+        private final String[][] commands;
+        private final Semaphore matchSlots;
+        private final MapCache mapCache = new MapCache();
+        private final Histogram[] latencies = { new Histogram(), new Histogram() };
+        private int firstRoundTimeoutMillis = FIRST_ROUND_TIME_MILLIS;
+        private int roundTimeoutMillis = ROUND_TIME_MILLIS;
+        private DatasetExporter datasetExporter;
+
+        /**
+         * @param parallelism
+         *            the maximum number of matches played at once
+         */
+        public ProcessMatchDriver(String[] command0, String[] command1, int parallelism) {
+            this.commands = new String[][] { command0, command1 };
+            this.matchSlots = new Semaphore(parallelism);
+        }
+
+        static ExecutorService newExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // No virtual threads before Java 21
+                return Executors.newCachedThreadPool(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "bot-io");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+
+        public void setTimeouts(int firstRoundMillis, int roundMillis) {
+            this.firstRoundTimeoutMillis = firstRoundMillis;
+            this.roundTimeoutMillis = roundMillis;
+        }
+
+        /**
+         * Export the turns of the matches. The exporter is not closed by the driver.
+         */
+        public void setDatasetExporter(DatasetExporter datasetExporter) {
+            this.datasetExporter = datasetExporter;
+        }
+
+        /**
+         * @return the time between the input sent to the player and its output, in nanoseconds
+         */
+        public Histogram getLatencies(int playerIdx) {
+            return latencies[playerIdx];
+        }
+
+        public BatchResult run(List<Properties> configurations) throws InterruptedException {
+            List<Future<MatchResult>> matches = new ArrayList<>(configurations.size());
+            for (final Properties configuration : configurations) {
+                matchSlots.acquire();
+                matches.add(executor.submit(new Callable<MatchResult>() {
+                    @Override
+                    public MatchResult call() throws Exception {
+                        try {
+                            return playMatch(configuration);
+                        } finally {
+                            matchSlots.release();
+                        }
+                    }
+                }));
+            }
+            BatchResult result = new BatchResult();
+            for (Future<MatchResult> match : matches) {
+                try {
+                    result.add(match.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Cannot play the match", e.getCause());
+                }
+            }
+            return result;
+        }
+
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+
+        /**
+         * Play a full match, following the same turn sequence as BatchRunner.playMatch
+         */
+        public MatchResult playMatch(Properties configuration) throws IOException, InterruptedException {
+            Game game = new Game();
+            game.setMapCache(mapCache);
+            game.setDatasetExporter(datasetExporter);
+            game.init(commands.length, configuration);
+            BotProcess[] bots = new BotProcess[commands.length];
+            try {
+                for (int i = 0; i < bots.length; i++) {
+                    bots[i] = new BotProcess(i, commands[i]);
+                }
+
+                int eliminated = -1;
+                int round = 0;
+                rounds: while (round < MAX_ROUNDS) {
+                    long timeout = TimeUnit.MILLISECONDS.toNanos(round == 0 ? firstRoundTimeoutMillis : roundTimeoutMillis);
+                    long deadline = System.nanoTime() + timeout;
+                    List<Future<String>> outputs = new ArrayList<>(bots.length);
+                    for (int i = 0; i < bots.length; i++) {
+                        String[] input = game.getInputForPlayer(i);
+                        if (round == 0) {
+                            String[] initInput = game.getInitInputForPlayer(i);
+                            String[] lines = Arrays.copyOf(initInput, initInput.length + input.length);
+                            System.arraycopy(input, 0, lines, initInput.length, input.length);
+                            input = lines;
+                        }
+                        outputs.add(bots[i].play(input));
+                    }
+                    for (int i = 0; i < bots.length; i++) {
+                        String output = await(outputs.get(i), deadline);
+                        try {
+                            if (output == null) {
+                                // Timeout, or the bot exited
+                                game.setDead(i);
+                                eliminated = i;
+                                break rounds;
+                            }
+                            game.handlePlayerOutput(i, new String[] { output });
+                        } catch (ActionException e) {
+                            eliminated = i;
+                            break rounds;
+                        }
+                    }
+                    round++;
+                    if (game.updateGame()) {
+                        break;
+                    }
+                }
+                return BatchRunner.getResult(configuration, game, eliminated, round);
+            } finally {
+                for (BotProcess bot : bots) {
+                    if (bot != null) {
+                        bot.destroy();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the output line, or null if it is not available before the deadline
+         */
+        private static String await(Future<String> output, long deadline) throws InterruptedException {
+            try {
+                return output.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                output.cancel(true);
+                return null;
+            }
+        }
+
+        private class BotProcess {
+            private final int playerIdx;
+            private final Process process;
+            private final BufferedWriter input;
+            private final BufferedReader output;
+
+            public BotProcess(int playerIdx, String[] command) throws IOException {
+                this.playerIdx = playerIdx;
+                this.process = new ProcessBuilder(command).start();
+                this.input = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+                this.output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+                final InputStream error = process.getErrorStream();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Drain the error output, so that a verbose bot never blocks on it
+                        byte[] buffer = new byte[4096];
+                        try {
+                            while (error.read(buffer) >= 0) {
+                                continue;
+                            }
+                        } catch (IOException e) {
+                            // The bot is gone
+                        }
+                    }
+                });
+            }
+
+            /**
+             * Send the input lines, then read the output line on the bot's thread
+             */
+            public Future<String> play(final String[] lines) {
+                return executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        for (String line : lines) {
+                            input.write(line);
+                            input.write('\n');
+                        }
+                        input.flush();
+                        long start = System.nanoTime();
+                        String line = output.readLine();
+                        long latency = System.nanoTime() - start;
+                        synchronized (latencies[playerIdx]) {
+                            latencies[playerIdx].record(latency);
+                        }
+                        return line;
+                    }
+                });
+            }
+
+            public void destroy() {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Binary replay file format. A replay stores the view init data once, then the frames in blocks of up to
+     * FRAMES_PER_BLOCK frames, each block optionally compressed with Deflate. A frame only stores the factory fields that
+     * changed since the previous frame, and the new troops and bombs. Integers are varints, signed ones zigzag encoded.
+     *
+     * <pre>
+     * header: magic (4 bytes), version, flags, playerCount, factoryCount, initLineCount, initLine...
+     * block:  frameCount, rawLength, storedLength, storedLength bytes
+     * frame:  (score, remainingBombs, messageLength + 1 or 0 without message, message chars) per player,
+     *         troopCount, (idDelta, owner, sourceId, destinationId, unitCount, remainingTurns) per troop,
+     *         bombCount, (idDelta, owner, sourceId, destinationId, remainingTurns) per bomb,
+     *         changed field masks (4 bits per factory), changed fields (owner, unitCount, productionRate, disabled)
+     * </pre>
+     */
+    static class Replay {
+        static final int MAGIC = 0x47495443;
+        static final int ARCHIVE_MAGIC = 0x47495441;
+        static final int VERSION = 1;
+        static final int FLAG_COMPRESSED = 1;
+        static final int FRAMES_PER_BLOCK = 32;
+        static final int KEY_FRAME_INTERVAL = 10;
+        static final int FACTORY_FIELDS = 4;
+        static final int TROOP_FIELDS = 6;
+        static final int BOMB_FIELDS = 5;
+
+        static int getFactoryCount(String[] initData) {
+            return FrameEncoder.parseInts(initData[1], new int[4], 4)[2];
+        }
+    }
+
+    /**
+     * Encodes frames relative to the previous frame encoded since the last reset
+     */
+    static class FrameEncoder {
+        private final int playerCount;
+        private final int[] factoryState;
+        private int lastEntityId;
+        private final int[] values = new int[Replay.TROOP_FIELDS];
+
+        public FrameEncoder(int playerCount, int factoryCount) {
+            this.playerCount = playerCount;
+            this.factoryState = new int[factoryCount * Replay.FACTORY_FIELDS];
+        }
+
+        /**
+         * Forget the previous frames, so that the next frame can be decoded on its own
+         */
+        public void reset() {
+            Arrays.fill(factoryState, 0);
+            lastEntityId = 0;
+        }
+
+        public void encode(String[] frameData, ReplayBuffer out) {
+            int line = 0;
+            for (int i = 0; i < playerCount; i++) {
+                String playerInfo = frameData[line++];
+                int scoreEnd = playerInfo.indexOf(' ');
+                int bombsEnd = playerInfo.indexOf(' ', scoreEnd + 1);
+                out.writeZigZag(Integer.parseInt(playerInfo.substring(0, scoreEnd)));
+                if (bombsEnd < 0) {
+                    out.writeVarInt(Integer.parseInt(playerInfo.substring(scoreEnd + 1)));
+                    out.writeVarInt(0);
+                } else {
+                    out.writeVarInt(Integer.parseInt(playerInfo.substring(scoreEnd + 1, bombsEnd)));
+                    String message = playerInfo.substring(bombsEnd + 1);
+                    out.writeVarInt(message.length() + 1);
+                    out.writeChars(message);
+                }
+            }
+            line = encodeEntities(frameData, line, Replay.TROOP_FIELDS, out);
+            line = encodeEntities(frameData, line, Replay.BOMB_FIELDS, out);
+
+            int factoryCount = factoryState.length / Replay.FACTORY_FIELDS;
+            int masksStart = out.size();
+            for (int i = 0; i < factoryCount; i += 2) {
+                out.writeByte(0);
+            }
+            for (int i = 0; i < factoryCount; i++) {
+                parseInts(frameData[line++], values, Replay.FACTORY_FIELDS);
+                int mask = 0;
+                for (int field = 0; field < Replay.FACTORY_FIELDS; field++) {
+                    int state = i * Replay.FACTORY_FIELDS + field;
+                    if (values[field] != factoryState[state]) {
+                        mask |= 1 << field;
+                        factoryState[state] = values[field];
+                        out.writeZigZag(values[field]);
+                    }
+                }
+                out.orByte(masksStart + i / 2, mask << (i % 2 * Replay.FACTORY_FIELDS));
+            }
+            if (line != frameData.length) {
+                throw new IllegalArgumentException("Unexpected frame length " + frameData.length + ", " + line + " lines read");
+            }
+        }
+
+        private int encodeEntities(String[] frameData, int line, int fieldCount, ReplayBuffer out) {
+            int count = Integer.parseInt(frameData[line++]);
+            out.writeVarInt(count);
+            for (int i = 0; i < count; i++) {
+                parseInts(frameData[line++], values, fieldCount);
+                out.writeZigZag(values[0] - lastEntityId);
+                lastEntityId = values[0];
+                for (int field = 1; field < fieldCount; field++) {
+                    out.writeZigZag(values[field]);
+                }
+            }
+            return line;
+        }
+
+        /**
+         * Parse a line of space separated integers
+         */
+        static int[] parseInts(String line, int[] values, int count) {
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                int end = i == count - 1 ? line.length() : line.indexOf(' ', start);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Expected " + count + " integers: " + line);
+                }
+                values[i] = Integer.parseInt(line.substring(start, end));
+                start = end + 1;
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Decodes the frames of a FrameEncoder, in the same order and with the same resets
+     */
+    static class FrameDecoder {
+        private final int playerCount;
+        private final int[] factoryState;
+        private int lastEntityId;
+        private final StringBuilder line = new StringBuilder();
+
+        public FrameDecoder(int playerCount, int factoryCount) {
+            this.playerCount = playerCount;
+            this.factoryState = new int[factoryCount * Replay.FACTORY_FIELDS];
+        }
+
+        public void reset() {
+            Arrays.fill(factoryState, 0);
+            lastEntityId = 0;
+        }
+
+        public String[] decode(ByteBuffer in) {
+            List<String> data = new ArrayList<>();
+            for (int i = 0; i < playerCount; i++) {
+                line.setLength(0);
+                line.append(readZigZag(in)).append(' ').append(readVarInt(in));
+                int messageLength = readVarInt(in) - 1;
+                if (messageLength >= 0) {
+                    line.append(' ');
+                    for (int c = 0; c < messageLength; c++) {
+                        line.append((char) readVarInt(in));
+                    }
+                }
+                data.add(line.toString());
+            }
+            decodeEntities(in, data, Replay.TROOP_FIELDS);
+            decodeEntities(in, data, Replay.BOMB_FIELDS);
+
+            int factoryCount = factoryState.length / Replay.FACTORY_FIELDS;
+            int masksStart = in.position();
+            in.position(masksStart + (factoryCount + 1) / 2);
+            for (int i = 0; i < factoryCount; i++) {
+                int mask = in.get(masksStart + i / 2) >> (i % 2 * Replay.FACTORY_FIELDS);
+                line.setLength(0);
+                for (int field = 0; field < Replay.FACTORY_FIELDS; field++) {
+                    int state = i * Replay.FACTORY_FIELDS + field;
+                    if ((mask & 1 << field) != 0) {
+                        factoryState[state] = readZigZag(in);
+                    }
+                    if (field > 0) {
+                        line.append(' ');
+                    }
+                    line.append(factoryState[state]);
+                }
+                data.add(line.toString());
+            }
+            return data.toArray(new String[data.size()]);
+        }
+
+        private void decodeEntities(ByteBuffer in, List<String> data, int fieldCount) {
+            int count = readVarInt(in);
+            data.add(String.valueOf(count));
+            for (int i = 0; i < count; i++) {
+                lastEntityId += readZigZag(in);
+                line.setLength(0);
+                line.append(lastEntityId);
+                for (int field = 1; field < fieldCount; field++) {
+                    line.append(' ').append(readZigZag(in));
+                }
+                data.add(line.toString());
+            }
+        }
+
+        static int readVarInt(ByteBuffer in) {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        static int readZigZag(ByteBuffer in) {
+            int value = readVarInt(in);
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        static String readString(ByteBuffer in) {
+            char[] chars = new char[readVarInt(in)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) readVarInt(in);
+            }
+            return new String(chars);
+        }
+    }
+
+    /**
+     * Writes the view data of a game as a binary replay. Call writeInit with getInitDataForView, then writeFrame with
+     * getFrameDataForView every turn, then close.
+     */
+    static class ReplayWriter implements Closeable {
+        private final OutputStream out;
+        private final int playerCount;
+        private final boolean compressed;
+        private final Deflater deflater;
+        private final ReplayBuffer frames = new ReplayBuffer();
+        private final ReplayBuffer header = new ReplayBuffer();
+        private byte[] compressedBlock = new byte[0];
+        private int blockFrameCount;
+        private FrameEncoder encoder;
+
+        public ReplayWriter(OutputStream out, int playerCount, boolean compressed) {
+            this.out = out;
+            this.playerCount = playerCount;
+            this.compressed = compressed;
+            this.deflater = compressed ? new Deflater() : null;
+        }
+
+        public void writeInit(String[] initData) throws IOException {
+            if (encoder != null) {
+                throw new IllegalStateException("Init data already written");
+            }
+            int factoryCount = Replay.getFactoryCount(initData);
+            encoder = new FrameEncoder(playerCount, factoryCount);
+
+            header.writeFixedInt(Replay.MAGIC);
+            header.writeByte(Replay.VERSION);
+            header.writeByte(compressed ? Replay.FLAG_COMPRESSED : 0);
+            header.writeVarInt(playerCount);
+            header.writeVarInt(factoryCount);
+            header.writeVarInt(initData.length);
+            for (String line : initData) {
+                header.writeString(line);
+            }
+            header.writeTo(out);
+            header.clear();
+        }
+
+        public void writeFrame(String[] frameData) throws IOException {
+            if (encoder == null) {
+                throw new IllegalStateException("Init data not written");
+            }
+            encoder.encode(frameData, frames);
+            if (++blockFrameCount == Replay.FRAMES_PER_BLOCK) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (blockFrameCount == 0) {
+                return;
+            }
+            header.writeVarInt(blockFrameCount);
+            header.writeVarInt(frames.size());
+            if (compressed) {
+                deflater.reset();
+                deflater.setInput(frames.array(), 0, frames.size());
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == compressedBlock.length) {
+                        compressedBlock = Arrays.copyOf(compressedBlock, Math.max(64, compressedBlock.length * 2));
+                    }
+                    length += deflater.deflate(compressedBlock, length, compressedBlock.length - length);
+                }
+                header.writeVarInt(length);
+                header.writeTo(out);
+                out.write(compressedBlock, 0, length);
+            } else {
+                header.writeVarInt(frames.size());
+                header.writeTo(out);
+                frames.writeTo(out);
+            }
+            header.clear();
+            frames.clear();
+            blockFrameCount = 0;
+        }
+
+        /**
+         * Write the pending frames as a block, without closing the stream
+         */
+        public void flush() throws IOException {
+            writeBlock();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writeBlock();
+                out.close();
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the text view data of a binary replay written by a ReplayWriter
+     */
+    static class ReplayReader {
+        private final ByteBuffer in;
+        private final boolean compressed;
+        private final String[] initData;
+        private final FrameDecoder decoder;
+        private final Inflater inflater;
+        private ByteBuffer block = ByteBuffer.allocate(0);
+        private byte[] blockData = new byte[0];
+        private int blockFrameCount;
+
+        public ReplayReader(ByteBuffer in) throws IOException {
+            this.in = in;
+            if (in.remaining() < 6 || in.getInt() != Replay.MAGIC) {
+                throw new IOException("Not a replay");
+            }
+            int version = in.get();
+            if (version != Replay.VERSION) {
+                throw new IOException("Unsupported replay version " + version);
+            }
+            compressed = (in.get() & Replay.FLAG_COMPRESSED) != 0;
+            inflater = compressed ? new Inflater() : null;
+            int playerCount = FrameDecoder.readVarInt(in);
+            decoder = new FrameDecoder(playerCount, FrameDecoder.readVarInt(in));
+            initData = new String[FrameDecoder.readVarInt(in)];
+            for (int i = 0; i < initData.length; i++) {
+                initData[i] = FrameDecoder.readString(in);
+            }
+        }
+
+        public String[] getInitData() {
+            return initData.clone();
+        }
+
+        public boolean hasNextFrame() {
+            return blockFrameCount > 0 || in.hasRemaining();
+        }
+
+        public String[] nextFrame() throws IOException {
+            if (blockFrameCount == 0) {
+                readBlock();
+            }
+            blockFrameCount--;
+            return decoder.decode(block);
+        }
+
+        private void readBlock() throws IOException {
+            if (!in.hasRemaining()) {
+                throw new IOException("No more frames");
+            }
+            blockFrameCount = FrameDecoder.readVarInt(in);
+            int rawLength = FrameDecoder.readVarInt(in);
+            int storedLength = FrameDecoder.readVarInt(in);
+            if (blockData.length < rawLength) {
+                blockData = new byte[rawLength];
+            }
+            if (compressed) {
+                byte[] stored = new byte[storedLength];
+                in.get(stored);
+                inflater.reset();
+                inflater.setInput(stored);
+                try {
+                    int length = 0;
+                    while (length < rawLength && !inflater.finished()) {
+                        int inflated = inflater.inflate(blockData, length, rawLength - length);
+                        if (inflated == 0 && inflater.needsInput()) {
+                            throw new IOException("Truncated replay block");
+                        }
+                        length += inflated;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupted replay block", e);
+                }
+            } else {
+                in.get(blockData, 0, rawLength);
+            }
+            block = ByteBuffer.wrap(blockData, 0, rawLength);
+        }
+    }
+
+    /**
+     * Troops and bombs in flight, followed from the new entities of each frame. Troops and bombs do not change until
+     * they arrive, so the keyframe of a turn can be rebuilt from the keyframe of an earlier turn and the frames since.
+     */
+    static class KeyFrameProjection {
+        private final int playerCount;
+        private final int factoryCount;
+        private final List<int[]> troops = new ArrayList<>();
+        private final List<int[]> bombs = new ArrayList<>();
+        private String[] frameData;
+
+        public KeyFrameProjection(int playerCount, int factoryCount) {
+            this.playerCount = playerCount;
+            this.factoryCount = factoryCount;
+        }
+
+        public void set(String[] keyFrameData) {
+            troops.clear();
+            bombs.clear();
+            add(keyFrameData);
+        }
+
+        /**
+         * Move the entities in flight by one turn, then add the new ones of the frame
+         */
+        public void advance(String[] frameData) {
+            move(troops);
+            move(bombs);
+            add(frameData);
+        }
+
+        public String[] toKeyFrame() {
+            List<String> data = new ArrayList<>();
+            data.addAll(Arrays.asList(frameData).subList(0, playerCount));
+            appendEntities(troops, data);
+            appendEntities(bombs, data);
+            data.addAll(Arrays.asList(frameData).subList(frameData.length - factoryCount, frameData.length));
+            return data.toArray(new String[data.size()]);
+        }
+
+        private void add(String[] frameData) {
+            this.frameData = frameData;
+            int line = addEntities(frameData, playerCount, Replay.TROOP_FIELDS, troops);
+            addEntities(frameData, line, Replay.BOMB_FIELDS, bombs);
+        }
+
+        private static int addEntities(String[] frameData, int line, int fieldCount, List<int[]> entities) {
+            int count = Integer.parseInt(frameData[line++]);
+            for (int i = 0; i < count; i++) {
+                int[] entity = FrameEncoder.parseInts(frameData[line++], new int[fieldCount], fieldCount);
+                if (entity[fieldCount - 1] > 0) {
+                    entities.add(entity);
+                }
+            }
+            return line;
+        }
+
+        /**
+         * Decrement the remaining turns of the entities, and remove the ones that arrive
+         */
+        private static void move(List<int[]> entities) {
+            for (Iterator<int[]> it = entities.iterator(); it.hasNext();) {
+                int[] entity = it.next();
+                if (--entity[entity.length - 1] <= 0) {
+                    it.remove();
+                }
+            }
+        }
+
+        private static void appendEntities(List<int[]> entities, List<String> data) {
+            data.add(String.valueOf(entities.size()));
+            StringBuilder line = new StringBuilder();
+            for (int[] entity : entities) {
+                line.setLength(0);
+                for (int field = 0; field < entity.length; field++) {
+                    if (field > 0) {
+                        line.append(' ');
+                    }
+                    line.append(entity[field]);
+                }
+                data.add(line.toString());
+            }
+        }
+    }
+
+    /**
+     * Appends matches to a replay archive: a data file of match records and an index file of (match id, record offset)
+     * entries. A record holds the frames of a match with a keyframe at least every KEY_FRAME_INTERVAL turns, preceded by
+     * a table of the keyframe offsets. Records are not compressed, so that a ReplayArchive reads them in place.
+     *
+     * <pre>
+     * record: matchId (8 bytes), recordLength (4 bytes), playerCount, factoryCount, initLineCount, initLine...,
+     *         turnCount, keyFrameCount, (turn, offset in the record) per keyframe (4 bytes each), turns
+     * turn:   keyframe (full state, encoded after a reset) on keyframe turns, then the frame
+     * </pre>
+     *
+     * A keyframe is also written whenever the keyframe of a turn cannot be rebuilt from the previous one, for example
+     * when the troops of a dead player are removed.
+     */
+    static class ReplayArchiveWriter implements Closeable {
+        private final OutputStream data;
+        private final OutputStream index;
+        private long position;
+        private final ReplayBuffer header = new ReplayBuffer();
+        private final ReplayBuffer body = new ReplayBuffer();
+        private final List<int[]> keyFrames = new ArrayList<>();
+        private long matchId;
+        private int playerCount;
+        private String[] initData;
+        private FrameEncoder encoder;
+        private KeyFrameProjection projection;
+        private int turn;
+
+        public ReplayArchiveWriter(File dataFile, File indexFile) throws IOException {
+            this.position = dataFile.length();
+            this.data = new BufferedOutputStream(new FileOutputStream(dataFile, true));
+            this.index = new BufferedOutputStream(new FileOutputStream(indexFile, true));
+            if (position == 0) {
+                header.writeFixedInt(Replay.ARCHIVE_MAGIC);
+                header.writeByte(Replay.VERSION);
+                header.writeTo(data);
+                position = header.size();
+                header.clear();
+            }
+        }
+
+        public void beginMatch(long matchId, int playerCount, String[] initData) {
+            if (encoder != null) {
+                throw new IllegalStateException("Match " + this.matchId + " not ended");
+            }
+            int factoryCount = Replay.getFactoryCount(initData);
+            this.matchId = matchId;
+            this.playerCount = playerCount;
+            this.initData = initData;
+            this.encoder = new FrameEncoder(playerCount, factoryCount);
+            this.projection = new KeyFrameProjection(playerCount, factoryCount);
+            this.turn = 0;
+            body.clear();
+            keyFrames.clear();
+        }
+
+        /**
+         * @param frameData
+         *            the getFrameDataForView of the turn
+         * @param keyFrameData
+         *            the getFrameDataForView of the turn, with keyFrame set
+         */
+        public void writeTurn(String[] frameData, String[] keyFrameData) {
+            if (encoder == null) {
+                throw new IllegalStateException("No match begun");
+            }
+            boolean keyFrame = turn % Replay.KEY_FRAME_INTERVAL == 0;
+            if (!keyFrame) {
+                projection.advance(frameData);
+                keyFrame = !Arrays.equals(projection.toKeyFrame(), keyFrameData);
+            }
+            if (keyFrame) {
+                keyFrames.add(new int[] { turn, body.size() });
+                encoder.reset();
+                encoder.encode(keyFrameData, body);
+                projection.set(keyFrameData);
+            }
+            encoder.encode(frameData, body);
+            turn++;
+        }
+
+        public void endMatch() throws IOException {
+            if (encoder == null) {
+                throw new IllegalStateException("No match begun");
+            }
+            header.writeFixedLong(matchId);
+            header.writeFixedInt(0);
+            header.writeVarInt(playerCount);
+            header.writeVarInt(Replay.getFactoryCount(initData));
+            header.writeVarInt(initData.length);
+            for (String line : initData) {
+                header.writeString(line);
+            }
+            header.writeVarInt(turn);
+            header.writeVarInt(keyFrames.size());
+            int bodyStart = header.size() + keyFrames.size() * 8;
+            for (int[] keyFrame : keyFrames) {
+                header.writeFixedInt(keyFrame[0]);
+                header.writeFixedInt(bodyStart + keyFrame[1]);
+            }
+            int recordLength = bodyStart + body.size();
+            header.setFixedInt(8, recordLength);
+            header.writeTo(data);
+            body.writeTo(data);
+            header.clear();
+            // The record reaches the data file before its index entry, so that the index never points past the data
+            data.flush();
+
+            header.writeFixedLong(matchId);
+            header.writeFixedLong(position);
+            header.writeTo(index);
+            header.clear();
+            index.flush();
+
+            position += recordLength;
+            encoder = null;
+            projection = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                data.close();
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Read-only view of a replay archive written by a ReplayArchiveWriter. The files are memory-mapped, and the frames of
+     * a turn are decoded from the last keyframe before it, so a reader can jump to any turn of any match without reading
+     * the rest of the archive.
+     */
+    static class ReplayArchive implements Closeable {
+        private static final int INDEX_ENTRY_SIZE = 16;
+        private static final long SEGMENT_SIZE = 1 << 29;
+
+        private final FileChannel channel;
+        private final long size;
+        private final ByteBuffer index;
+        private final int matchCount;
+        private final boolean sortedIndex;
+        private final MappedByteBuffer[] segments;
+
+        public ReplayArchive(File dataFile, File indexFile) throws IOException {
+            channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+            try {
+                size = channel.size();
+                segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                if (size < 5 || segment(0).getInt(0) != Replay.ARCHIVE_MAGIC) {
+                    throw new IOException("Not a replay archive");
+                }
+                try (FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                    // A truncated entry is the end of an interrupted append
+                    long indexSize = indexChannel.size() / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE;
+                    index = indexChannel.map(MapMode.READ_ONLY, 0, indexSize);
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+
+            // Records are appended in the order of their entries, so the entries whose record is entirely in the data file
+            // come first. The others, past the first one pointing beyond the data, are the end of an interrupted append.
+            int low = 0;
+            int high = index.capacity() / INDEX_ENTRY_SIZE;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (isComplete(middle)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            matchCount = low;
+
+            boolean sorted = true;
+            for (int i = 1; i < matchCount && sorted; i++) {
+                sorted = getMatchId(i - 1) < getMatchId(i);
+            }
+            sortedIndex = sorted;
+        }
+
+        private boolean isComplete(int matchIdx) throws IOException {
+            long offset = index.getLong(matchIdx * INDEX_ENTRY_SIZE + 8);
+            // The record length follows the 8 bytes of the match id
+            if (offset < 5 || offset + 12 > size) {
+                return false;
+            }
+            int segmentIdx = (int) (offset / SEGMENT_SIZE);
+            int length = segment(segmentIdx).getInt((int) (offset - segmentIdx * SEGMENT_SIZE) + 8);
+            return length >= 12 && offset + length <= size;
+        }
+
+        public int getMatchCount() {
+            return matchCount;
+        }
+
+        public long getMatchId(int matchIdx) {
+            return index.getLong(matchIdx * INDEX_ENTRY_SIZE);
+        }
+
+        /**
+         * @return the index of the match in the archive, or -1
+         */
+        public int findMatch(long matchId) {
+            if (sortedIndex) {
+                int low = 0;
+                int high = matchCount - 1;
+                while (low <= high) {
+                    int middle = (low + high) >>> 1;
+                    long id = getMatchId(middle);
+                    if (id < matchId) {
+                        low = middle + 1;
+                    } else if (id > matchId) {
+                        high = middle - 1;
+                    } else {
+                        return middle;
+                    }
+                }
+                return -1;
+            }
+            for (int i = 0; i < matchCount; i++) {
+                if (getMatchId(i) == matchId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public ArchivedMatch getMatch(int matchIdx) throws IOException {
+            long offset = index.getLong(matchIdx * INDEX_ENTRY_SIZE + 8);
+            int segmentIdx = (int) (offset / SEGMENT_SIZE);
+            int start = (int) (offset - segmentIdx * SEGMENT_SIZE);
+            ByteBuffer record = segment(segmentIdx).duplicate();
+            int length = record.getInt(start + 8);
+            if (start + length <= record.capacity()) {
+                record.position(start);
+                record.limit(start + length);
+                return new ArchivedMatch(record.slice());
+            }
+            // The record goes past the end of the segment
+            return new ArchivedMatch(channel.map(MapMode.READ_ONLY, offset, length));
+        }
+
+        /**
+         * Segments start every SEGMENT_SIZE bytes and span twice that size, so that they contain all the records starting
+         * in them that are smaller than SEGMENT_SIZE
+         */
+        private synchronized MappedByteBuffer segment(int segmentIdx) throws IOException {
+            if (segments[segmentIdx] == null) {
+                long start = segmentIdx * SEGMENT_SIZE;
+                segments[segmentIdx] = channel.map(MapMode.READ_ONLY, start, Math.min(size - start, 2 * SEGMENT_SIZE));
+            }
+            return segments[segmentIdx];
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A match of a ReplayArchive. It decodes the turns forward from the current turn, or from the last keyframe before
+     * the requested turn when it is closer. Not thread-safe.
+     */
+    static class ArchivedMatch {
+        private final ByteBuffer record;
+        private final long matchId;
+        private final String[] initData;
+        private final int turnCount;
+        private final int[] keyFrameTurns;
+        private final int[] keyFrameOffsets;
+        private final FrameDecoder decoder;
+        private final KeyFrameProjection projection;
+        private int turn = -1;
+        private int nextKeyFrame;
+        private String[] frameData;
+
+        public ArchivedMatch(ByteBuffer record) {
+            this.record = record;
+            matchId = record.getLong(0);
+            record.position(12);
+            int playerCount = FrameDecoder.readVarInt(record);
+            int factoryCount = FrameDecoder.readVarInt(record);
+            initData = new String[FrameDecoder.readVarInt(record)];
+            for (int i = 0; i < initData.length; i++) {
+                initData[i] = FrameDecoder.readString(record);
+            }
+            turnCount = FrameDecoder.readVarInt(record);
+            keyFrameTurns = new int[FrameDecoder.readVarInt(record)];
+            keyFrameOffsets = new int[keyFrameTurns.length];
+            for (int i = 0; i < keyFrameTurns.length; i++) {
+                keyFrameTurns[i] = record.getInt();
+                keyFrameOffsets[i] = record.getInt();
+            }
+            decoder = new FrameDecoder(playerCount, factoryCount);
+            projection = new KeyFrameProjection(playerCount, factoryCount);
+        }
+
+        public long getMatchId() {
+            return matchId;
+        }
+
+        public String[] getInitData() {
+            return initData.clone();
+        }
+
+        public int getTurnCount() {
+            return turnCount;
+        }
+
+        /**
+         * @return the getFrameDataForView of the turn
+         */
+        public String[] getFrame(int turn) {
+            seek(turn);
+            return frameData.clone();
+        }
+
+        /**
+         * @return the getFrameDataForView of the turn, with keyFrame set
+         */
+        public String[] getKeyFrame(int turn) {
+            seek(turn);
+            return projection.toKeyFrame();
+        }
+
+        private void seek(int target) {
+            if (target < 0 || target >= turnCount) {
+                throw new IndexOutOfBoundsException("Turn " + target + " of " + turnCount);
+            }
+            if (target < turn || nextKeyFrame < keyFrameTurns.length && keyFrameTurns[nextKeyFrame] <= target) {
+                int keyFrame = Arrays.binarySearch(keyFrameTurns, target);
+                if (keyFrame < 0) {
+                    keyFrame = -keyFrame - 2;
+                }
+                record.position(keyFrameOffsets[keyFrame]);
+                turn = keyFrameTurns[keyFrame] - 1;
+                nextKeyFrame = keyFrame;
+            }
+            while (turn < target) {
+                turn++;
+                if (nextKeyFrame < keyFrameTurns.length && keyFrameTurns[nextKeyFrame] == turn) {
+                    decoder.reset();
+                    projection.set(decoder.decode(record));
+                    frameData = decoder.decode(record);
+                    nextKeyFrame++;
+                } else {
+                    frameData = decoder.decode(record);
+                    projection.advance(frameData);
+                }
+            }
+        }
+    }
+
+    /**
+     * Growable byte buffer with the varint encodings of the replay format
+     */
+    static class ReplayBuffer {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        public void writeByte(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        public void orByte(int position, int value) {
+            bytes[position] |= value;
+        }
+
+        public void writeFixedInt(int value) {
+            writeByte(value >>> 24);
+            writeByte(value >>> 16);
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        public void setFixedInt(int position, int value) {
+            bytes[position] = (byte) (value >>> 24);
+            bytes[position + 1] = (byte) (value >>> 16);
+            bytes[position + 2] = (byte) (value >>> 8);
+            bytes[position + 3] = (byte) value;
+        }
+
+        public void writeFixedLong(long value) {
+            writeFixedInt((int) (value >>> 32));
+            writeFixedInt((int) value);
+        }
+
+        public void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                writeByte(value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        public void writeZigZag(int value) {
+            writeVarInt(value << 1 ^ value >> 31);
+        }
+
+        /**
+         * Write the UTF-16 chars of a string one varint each, so that any string is restored as is
+         */
+        public void writeChars(CharSequence chars) {
+            for (int i = 0; i < chars.length(); i++) {
+                writeVarInt(chars.charAt(i));
+            }
+        }
+
+        public void writeString(String value) {
+            writeVarInt(value.length());
+            writeChars(value);
+        }
+
+        public byte[] array() {
+            return bytes;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+        }
+    }
+
+    @Override
+    protected void initReferee(int playerCount, Properties prop) throws InvalidFormatException {
+        this.game = new Game();
+        this.game.setMapCache(getMapCache());
+        this.game.setMetrics(getMetrics());
+        this.game.setDatasetExporter(getDatasetExporter());
+        this.game.setToolTipListener(new ToolTipListener() {
+            @Override
+            public void onToolTip(int playerIdx, String code, Object... values) {
+                addToolTip(playerIdx, translate(code, values));
+            }
+        });
+        this.game.init(playerCount, prop);
+    }
+
+    private static synchronized MapCache getMapCache() {
+        String file = System.getProperty("mapCacheFile");
+        if (mapCache == null && file != null && new File(file).isFile()) {
+            try {
+                mapCache = MapCache.load(new File(file));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot load the map cache " + file, e);
+            }
+            // Only the maps of the file are shared
+            mapCache.setCapacity(mapCache.size());
+        }
+        return mapCache;
+    }
+
+    private static synchronized TurnMetrics getMetrics() {
+        final String file = System.getProperty("metricsFile");
+        if (metrics == null && file != null) {
+            final TurnMetrics jvmMetrics = new TurnMetrics();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        jvmMetrics.writeJson(new File(file));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Cannot write the metrics " + file, e);
+                    }
+                }
+            });
+            metrics = jvmMetrics;
+        }
+        return metrics;
+    }
+
+    private static synchronized DatasetExporter getDatasetExporter() {
+        final String directory = System.getProperty("datasetDirectory");
+        if (datasetExporter == null && directory != null) {
+            final DatasetExporter jvmExporter = new DatasetExporter(new File(directory), 16);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        jvmExporter.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Cannot write the dataset " + directory, e);
+                    }
+                }
+            });
+            datasetExporter = jvmExporter;
+        }
+        return datasetExporter;
+    }
+
+    @Override
+    protected Properties getConfiguration() {
+        return game.getConfiguration();
+    }
+
+    @Override
+    protected String[] getInitInputForPlayer(int playerIdx) {
+        return game.getInitInputForPlayer(playerIdx);
+    }
+
+    @Override
+    protected void prepare(int round) {
+    }
+
+    @Override
+    protected String[] getInputForPlayer(int round, int playerIdx) {
+        return game.getInputForPlayer(playerIdx);
+    }
+
+    @Override
+    protected int getExpectedOutputLineCountForPlayer(int playerIdx) {
+        return 1;
+    }
+
+    @Override
+    protected void handlePlayerOutput(int frame, int round, int playerIdx, String[] outputs)
+            throws WinException, LostException, InvalidInputException {
+        try {
+            game.handlePlayerOutput(playerIdx, outputs);
+        } catch (ActionException e) {
+            if (e.invalidInput) {
+                throw new InvalidInputException((String) e.values[0], (String) e.values[1]);
+            }
+            throw new LostException(e.reasonCode, e.values);
+        }
+    }
+
+    @Override
+    protected void updateGame(int round) throws GameOverException {
+        if (game.updateGame()) {
+            throw new GameOverException("endReached");
+        }
+    }
+
+    @Override
+    protected void populateMessages(Properties p) {
+        p.put("endReached", "End reached");
+    }
+
+    @Override
+    protected String[] getInitDataForView() {
+        return game.getInitDataForView();
+    }
+
+    @Override
+    protected String[] getFrameDataForView(int round, int frame, boolean keyFrame) {
+        return game.getFrameDataForView();
     }
 
     @Override
@@ -852,7 +6412,7 @@ class Referee extends MultiReferee {
 
     @Override
     protected int getScore(int playerIdx) {
-        return players[playerIdx].score;
+        return game.getScore(playerIdx);
     }
 
     @Override
@@ -862,17 +6422,17 @@ class Referee extends MultiReferee {
 
     @Override
     protected void setPlayerTimeout(int frame, int round, int playerIdx) {
-        players[playerIdx].setDead();
+        game.setDead(playerIdx);
     }
 
     @Override
     protected int getMaxRoundCount(int playerCount) {
-        return 200;
+        return MAX_ROUNDS;
     }
 
     @Override
     protected int getMillisTimeForRound() {
-        return 50;
+        return ROUND_TIME_MILLIS;
     }
 
     public static void main(String... args) throws IOException {
@@ -0,0 +1,457 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of the referee hot paths. Every input is derived from fixed seeds, so two runs measure the same work.
+ * <p>
+ * The referee lives in the default package, which JMH refuses, so this is a self-contained harness following the JMH
+ * scheme: timed warmup iterations, then timed measurement iterations reporting the average time per operation and its
+ * standard deviation, with results fed to a sink so that the JIT cannot drop them. Operations are timed one by one,
+ * which lets them prepare their inputs outside of the measured time. Compile the harness with the referee sources:
+ *
+ * <pre>
+ * javac -d out Referee.java benchmarks/RefereeBenchmark.java
+ * java -cp out RefereeBenchmark [-baseline benchmarks/baseline.properties] [-output result.properties] [-filter regex]
+ *                               [-forks 3]
+ * </pre>
+ *
+ * As with JMH, each benchmark runs in fresh JVMs, 3 forks by default, or in this JVM with -forks 0. The code compiled by
+ * the JIT depends on the profile of a JVM: the same benchmark can take 1.5 times longer in one JVM than in another. The
+ * reported deviation adds the deviation across the forks to the one of the iterations within a fork.
+ * <p>
+ * With a baseline, a benchmark regresses when it is slower than the baseline by more than the tolerance (5% by default,
+ * -tolerance 0.05) and by more than a number of standard deviations of the difference (2 by default, -sigmas 2). The
+ * deviations of both runs are saved with the averages, so the noise of a benchmark is not reported as a regression.
+ * Regressions are reported and the exit code is 1.
+ * <p>
+ * The output file names the machine and the JVM it was measured on. Timings only compare on the same machine:
+ * benchmarks/baseline.properties was measured on a single CPU Linux container (Intel Xeon, x86_64) with OpenJDK 17.0.9,
+ * and should be regenerated with -output where the check runs.
+ * <p>
+ * Turns are replayed from a scripted game recorded once per benchmark, around the turn with the most troops in flight:
+ * tens of troops for the "small" scenario, hundreds for "medium" and about a thousand for "huge".
+ * <p>
+ * Each scenario runs on both engines. The "soa" engine is not meant to be a faster referee: it plays the games on the
+ * Simulation, the forward model of the search bots, so that the referee and the differential test check the model
+ * against the rules of the default engine. It does not update a game faster: in the baseline, updateGame takes 0.92,
+ * 4.55 and 10.48 us/op on it in the small, medium and huge scenarios, against 0.99, 4.80 and 8.71 us/op on the default
+ * engine, on par within the deviations but for huge. Runs without forks have measured it slower in every scenario, as
+ * in huge with 10.4 against 7.1 us/op.
+ */
+public class RefereeBenchmark {
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 500_000_000L;
+    private static final int SEED_COUNT = 64;
+    private static final int REPLAYED_TURNS = 10;
+    private static final String[] SCENARIOS = { "small", "medium", "huge" };
+    private static final String[] ENGINES = { "default", "soa" };
+    private static final String[] OPERATIONS = { "getInputForPlayer", "appendInputForPlayer", "handlePlayerOutput", "updateGame",
+            "getFrameDataForView" };
+    private static final String DEVIATION_SUFFIX = ".deviation";
+
+    private static volatile Object sink;
+
+    private static abstract class Operation {
+        /**
+         * Called before each operation, outside of the measured time
+         */
+        public void prepare() throws Exception {
+        }
+
+        public abstract Object run() throws Exception;
+    }
+
+    public static void main(String... args) throws Exception {
+        String baselineFile = null;
+        String outputFile = null;
+        String filter = ".*";
+        double tolerance = 0.05;
+        double sigmas = 2;
+        int forks = 3;
+        for (int i = 0; i < args.length; i += 2) {
+            switch (args[i]) {
+            case "-baseline":
+                baselineFile = args[i + 1];
+                break;
+            case "-output":
+                outputFile = args[i + 1];
+                break;
+            case "-filter":
+                filter = args[i + 1];
+                break;
+            case "-tolerance":
+                tolerance = Double.parseDouble(args[i + 1]);
+                break;
+            case "-sigmas":
+                sigmas = Double.parseDouble(args[i + 1]);
+                break;
+            case "-forks":
+                forks = Integer.parseInt(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        names.add("generateFactories");
+        for (String scenario : SCENARIOS) {
+            for (String engine : ENGINES) {
+                for (String operation : OPERATIONS) {
+                    names.add(operation + ":" + scenario + ":" + engine);
+                }
+            }
+        }
+
+        Properties results = new Properties();
+        for (String name : names) {
+            if (name.matches(filter)) {
+                double[] score = forks > 0 ? fork(name, forks) : measure(create(name));
+                System.out.printf("%-40s %12.3f +- %8.3f us/op%n", name, score[0], score[1]);
+                results.setProperty(name, String.valueOf(score[0]));
+                results.setProperty(name + DEVIATION_SUFFIX, String.valueOf(score[1]));
+            }
+        }
+
+        if (outputFile != null) {
+            try (OutputStream out = new FileOutputStream(outputFile)) {
+                results.store(out, "Average time per operation and its standard deviation, in microseconds, on " + machine());
+            }
+        }
+        if (baselineFile != null && !compare(results, load(baselineFile), tolerance, sigmas)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Create the operation of a benchmark, with the match it replays
+     */
+    private static Operation create(String name) throws Referee.ActionException {
+        if (name.equals("generateFactories")) {
+            return generateFactories();
+        }
+        String[] parts = name.split(":");
+        Match match = new Match(parts[1], parts[2]);
+        switch (parts[0]) {
+        case "getInputForPlayer":
+            return getInputForPlayer(match);
+        case "appendInputForPlayer":
+            return appendInputForPlayer(match);
+        case "handlePlayerOutput":
+            return handlePlayerOutput(match);
+        case "updateGame":
+            return updateGame(match);
+        case "getFrameDataForView":
+            return getFrameDataForView(match);
+        default:
+            throw new IllegalArgumentException("Unknown benchmark " + name);
+        }
+    }
+
+    /**
+     * Measure a benchmark in fresh JVMs running this harness with -forks 0
+     * 
+     * @return the average time of an operation in microseconds, and its standard deviation within and across the forks
+     */
+    private static double[] fork(String name, int forks) throws IOException, InterruptedException {
+        double[] means = new double[forks];
+        double mean = 0;
+        double variance = 0;
+        for (int i = 0; i < forks; i++) {
+            File output = File.createTempFile("benchmark", ".properties");
+            try {
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        RefereeBenchmark.class.getName(), "-forks", "0", "-filter", Pattern.quote(name), "-output", output.getPath());
+                builder.redirectErrorStream(true);
+                Process process = builder.start();
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                try (InputStream in = process.getInputStream()) {
+                    byte[] buffer = new byte[4096];
+                    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                        log.write(buffer, 0, read);
+                    }
+                }
+                if (process.waitFor() != 0) {
+                    String message = new String(log.toByteArray(), StandardCharsets.UTF_8);
+                    throw new IllegalStateException("Fork of " + name + " failed:\n" + message);
+                }
+                Properties result = load(output.getPath());
+                means[i] = Double.parseDouble(result.getProperty(name));
+                double deviation = Double.parseDouble(result.getProperty(name + DEVIATION_SUFFIX));
+                mean += means[i] / forks;
+                variance += deviation * deviation / forks;
+            } finally {
+                output.delete();
+            }
+        }
+        for (double forkMean : means) {
+            variance += (forkMean - mean) * (forkMean - mean) / forks;
+        }
+        return new double[] { mean, Math.sqrt(variance) };
+    }
+
+    /**
+     * @return the average time of an operation in microseconds, and its standard deviation across iterations
+     */
+    private static double[] measure(Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(operation);
+        }
+        double[] scores = new double[MEASUREMENT_ITERATIONS];
+        double mean = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            scores[i] = iteration(operation);
+            mean += scores[i] / MEASUREMENT_ITERATIONS;
+        }
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean) / MEASUREMENT_ITERATIONS;
+        }
+        return new double[] { mean, Math.sqrt(variance) };
+    }
+
+    private static double iteration(Operation operation) throws Exception {
+        long operations = 0;
+        long elapsed = 0;
+        while (elapsed < ITERATION_NANOS) {
+            operation.prepare();
+            long start = System.nanoTime();
+            sink = operation.run();
+            elapsed += System.nanoTime() - start;
+            operations++;
+        }
+        return elapsed / 1000. / operations;
+    }
+
+    private static Properties load(String file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private static String machine() {
+        return System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", " + Runtime.getRuntime().availableProcessors()
+                + " CPUs, " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version");
+    }
+
+    /**
+     * @return false if a benchmark is slower than the baseline by more than the tolerance, and by more than sigmas
+     *         standard deviations of the difference
+     */
+    private static boolean compare(Properties results, Properties baseline, double tolerance, double sigmas) {
+        boolean success = true;
+        for (String name : results.stringPropertyNames()) {
+            String reference = baseline.getProperty(name);
+            if (reference != null && !name.endsWith(DEVIATION_SUFFIX)) {
+                double time = Double.parseDouble(results.getProperty(name));
+                double baselineTime = Double.parseDouble(reference);
+                // Deviations of independent runs add up in quadrature
+                double deviation = Math.hypot(Double.parseDouble(results.getProperty(name + DEVIATION_SUFFIX)),
+                        Double.parseDouble(baseline.getProperty(name + DEVIATION_SUFFIX, "0")));
+                if (time > baselineTime * (1 + tolerance) && time - baselineTime > sigmas * deviation) {
+                    System.out.printf("REGRESSION %-40s %.2fx the baseline, %.3f +- %.3f us/op slower%n", name, time / baselineTime,
+                            time - baselineTime, deviation);
+                    success = false;
+                }
+            }
+        }
+        return success;
+    }
+
+    private static Operation generateFactories() {
+        final Properties[] configurations = new Properties[SEED_COUNT];
+        for (int i = 0; i < SEED_COUNT; i++) {
+            configurations[i] = configuration(i, null);
+        }
+        return new Operation() {
+            private int next;
+
+            @Override
+            public Object run() {
+                Referee.Game game = new Referee.Game();
+                game.init(2, configurations[next++ % SEED_COUNT]);
+                return game;
+            }
+        };
+    }
+
+    private static Operation getInputForPlayer(final Match match) {
+        return new Operation() {
+            @Override
+            public Object run() {
+                return match.game.getInputForPlayer(0);
+            }
+        };
+    }
+
+    private static Operation appendInputForPlayer(final Match match) {
+        final StringBuilder input = new StringBuilder();
+        return new Operation() {
+            @Override
+            public Object run() {
+                input.setLength(0);
+                match.game.appendInputForPlayer(0, input);
+                return input;
+            }
+        };
+    }
+
+    private static Operation handlePlayerOutput(final Match match) {
+        final String[] outputs = { match.outputs.get(match.turn)[0] };
+        return new Operation() {
+            @Override
+            public Object run() throws Exception {
+                match.game.handlePlayerOutput(0, outputs);
+                return match.game;
+            }
+        };
+    }
+
+    private static Operation updateGame(final Match match) {
+        return new Operation() {
+            @Override
+            public void prepare() throws Exception {
+                match.prepareTurn();
+            }
+
+            @Override
+            public Object run() {
+                return match.game.updateGame();
+            }
+        };
+    }
+
+    private static Operation getFrameDataForView(final Match match) {
+        return new Operation() {
+            @Override
+            public Object run() {
+                return match.game.getFrameDataForView();
+            }
+        };
+    }
+
+    /**
+     * A game replaying recorded outputs, positioned on the turn with the most troops in flight
+     */
+    private static class Match {
+        private final Properties configuration;
+        private final List<String[]> outputs = new ArrayList<>();
+        private final int peakTurn;
+        private Referee.Game game;
+        private int turn;
+
+        public Match(String scenario, String engine) throws Referee.ActionException {
+            configuration = configuration(42, engine);
+            configuration.setProperty("factory_count", "15");
+            peakTurn = record(scenario);
+            restart();
+        }
+
+        /**
+         * Start over at the beginning of the replayed turns
+         */
+        private void restart() throws Referee.ActionException {
+            game = new Referee.Game();
+            game.init(2, configuration);
+            turn = 0;
+            while (turn < peakTurn) {
+                prepareTurn();
+                game.updateGame();
+            }
+        }
+
+        /**
+         * Parse the outputs of the next turn, so that updateGame can play it
+         */
+        public void prepareTurn() throws Referee.ActionException {
+            if (turn >= Math.min(peakTurn + REPLAYED_TURNS, outputs.size())) {
+                restart();
+            }
+            String[] turnOutputs = outputs.get(turn++);
+            game.handlePlayerOutput(0, new String[] { turnOutputs[0] });
+            game.handlePlayerOutput(1, new String[] { turnOutputs[1] });
+        }
+
+        /**
+         * Play a scripted game and record the outputs of both players
+         * 
+         * @return the turn with the most troops in flight
+         */
+        private int record(String scenario) throws Referee.ActionException {
+            Referee.Game recorded = new Referee.Game();
+            recorded.init(2, configuration);
+            int peak = 0;
+            int peakTroops = -1;
+            boolean gameOver = false;
+            for (int round = 0; round < 200 && !gameOver; round++) {
+                Referee.Simulation state = recorded.createSimulation();
+                if (state.getTroopCount() > peakTroops) {
+                    peak = round;
+                    peakTroops = state.getTroopCount();
+                }
+                String[] turnOutputs = new String[2];
+                for (int player = 0; player < 2; player++) {
+                    turnOutputs[player] = scriptedOutput(scenario, state, player, round);
+                    recorded.handlePlayerOutput(player, new String[] { turnOutputs[player] });
+                }
+                outputs.add(turnOutputs);
+                gameOver = recorded.updateGame();
+            }
+            return Math.max(0, Math.min(peak, outputs.size() - REPLAYED_TURNS));
+        }
+    }
+
+    private static Properties configuration(long seed, String engine) {
+        Properties configuration = new Properties();
+        configuration.setProperty("seed", String.valueOf(seed));
+        if (engine != null) {
+            configuration.setProperty("engine", engine);
+        }
+        return configuration;
+    }
+
+    /**
+     * Scripted bot that avoids its opponent's factories, so that the game lasts. Each owned factory sends single units to
+     * other factories: to one of them in the "small" scenario, to all of them in "medium". In "huge", units are
+     * stockpiled while expanding during the first half of the game, then sent to every other factory each turn.
+     */
+    private static String scriptedOutput(String scenario, Referee.Simulation state, int player, int round) {
+        StringBuilder output = new StringBuilder("WAIT");
+        int factoryCount = state.getFactoryCount();
+        boolean stockpile = "huge".equals(scenario) && round < 100;
+        int movesPerFactory = "small".equals(scenario) || stockpile ? 1 : factoryCount;
+        for (int src = 0; src < factoryCount; src++) {
+            if (state.getOwner(src) != player) {
+                continue;
+            }
+            for (int offset = 1; offset < factoryCount && offset <= movesPerFactory; offset++) {
+                int dst = (src + offset + round) % factoryCount;
+                boolean target = stockpile ? state.getOwner(dst) < 0 : "huge".equals(scenario) || state.getOwner(dst) != 1 - player;
+                if (dst != src && target) {
+                    output.append(";MOVE ").append(src).append(' ').append(dst).append(stockpile ? " 5" : " 1");
+                }
+            }
+            if (round % 25 == 10 && state.getOwner((src + 1) % factoryCount) != player) {
+                output.append(";BOMB ").append(src).append(' ').append((src + 1) % factoryCount);
+            }
+            if (state.getUnitCount(src) > 30 && state.getProductionRate(src) < 3) {
+                output.append(";INC ").append(src);
+            }
+        }
+        return output.append(";MSG round ").append(round).toString();
+    }
+}
@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Differential test of the two engines of updateGame: the object engine and the struct-of-arrays Simulation ("soa").
+ * Every seed is played by both engines in lockstep, with the same outputs for both players. After each turn, the inputs
+ * of the players, the frame of the view, the scores, the state hashes and the end of the game must be identical. The
+ * outputs come from a seeded random bot, which also sends invalid actions, bombs, increases and messages, so the seeds
+ * cover the rarer rules. Compile the test with the referee sources:
+ *
+ * <pre>
+ * javac -d out Referee.java tests/EngineDifferentialTest.java
+ * java -cp out EngineDifferentialTest [-first 0] [-seeds 3000]
+ * </pre>
+ *
+ * The exit code is 1 when a seed differs, after reporting the first difference of every failing seed.
+ */
+public class EngineDifferentialTest {
+    private static final int MAX_ROUNDS = 200;
+    private static final String[] ENGINES = { "default", "soa" };
+
+    public static void main(String... args) {
+        long firstSeed = 0;
+        int seedCount = 3000;
+        for (int i = 0; i < args.length; i += 2) {
+            switch (args[i]) {
+            case "-first":
+                firstSeed = Long.parseLong(args[i + 1]);
+                break;
+            case "-seeds":
+                seedCount = Integer.parseInt(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        int failures = 0;
+        for (long seed = firstSeed; seed < firstSeed + seedCount; seed++) {
+            String difference = compare(seed);
+            if (difference != null) {
+                System.out.println("seed " + seed + ": " + difference);
+                failures++;
+            }
+        }
+        System.out.println(seedCount + " seeds, " + failures + " failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the first difference between the engines, or null
+     */
+    private static String compare(long seed) {
+        Referee.Game[] games = new Referee.Game[ENGINES.length];
+        for (int i = 0; i < games.length; i++) {
+            games[i] = new Referee.Game();
+            games[i].init(2, configuration(seed, ENGINES[i]));
+        }
+        for (int player = 0; player < 2; player++) {
+            String difference = compare("init input of player " + player, games[0].getInitInputForPlayer(player),
+                    games[1].getInitInputForPlayer(player));
+            if (difference != null) {
+                return difference;
+            }
+        }
+        String difference = compare("init view", games[0].getInitDataForView(), games[1].getInitDataForView());
+        if (difference != null) {
+            return difference;
+        }
+
+        Random[] bots = { new Random(seed * 31), new Random(seed * 17 + 5) };
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            boolean eliminated = false;
+            for (int player = 0; player < 2 && !eliminated; player++) {
+                String[] input = games[0].getInputForPlayer(player);
+                difference = compare("input of player " + player + " at round " + round, input, games[1].getInputForPlayer(player));
+                if (difference != null) {
+                    return difference;
+                }
+                String output = randomOutput(input, bots[player], round);
+                String[] errors = new String[games.length];
+                for (int i = 0; i < games.length; i++) {
+                    try {
+                        games[i].handlePlayerOutput(player, new String[] { output });
+                    } catch (Referee.ActionException e) {
+                        errors[i] = e.getMessage();
+                    }
+                }
+                if (!String.valueOf(errors[0]).equals(String.valueOf(errors[1]))) {
+                    return "error of player " + player + " at round " + round + ": " + errors[0] + " / " + errors[1];
+                }
+                eliminated = errors[0] != null;
+            }
+            if (eliminated) {
+                // The referee stops the game at the first invalid output
+                return null;
+            }
+
+            boolean[] gameOver = new boolean[games.length];
+            for (int i = 0; i < games.length; i++) {
+                gameOver[i] = games[i].updateGame();
+            }
+            String turn = " at round " + round;
+            difference = compare("view" + turn, games[0].getFrameDataForView(), games[1].getFrameDataForView());
+            if (difference != null) {
+                return difference;
+            }
+            for (int player = 0; player < 2; player++) {
+                if (games[0].getScore(player) != games[1].getScore(player)) {
+                    return "score of player " + player + turn + ": " + games[0].getScore(player) + " / " + games[1].getScore(player);
+                }
+            }
+            if (games[0].getStateHash() != games[1].getStateHash()) {
+                return "state hash" + turn;
+            }
+            if (gameOver[0] != gameOver[1]) {
+                return "game over" + turn + ": " + gameOver[0] + " / " + gameOver[1];
+            }
+            if (gameOver[0]) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static String compare(String what, String[] expected, String[] actual) {
+        if (Arrays.equals(expected, actual)) {
+            return null;
+        }
+        int line = 0;
+        while (line < Math.min(expected.length, actual.length) && expected[line].equals(actual[line])) {
+            line++;
+        }
+        return what + ", line " + line + ": " + (line < expected.length ? expected[line] : "<end>") + " / "
+                + (line < actual.length ? actual[line] : "<end>");
+    }
+
+    private static Properties configuration(long seed, String engine) {
+        Properties configuration = new Properties();
+        configuration.setProperty("seed", String.valueOf(seed));
+        if (seed % 3 == 0) {
+            configuration.setProperty("factory_count", String.valueOf(7 + seed % 9));
+        }
+        configuration.setProperty("engine", engine);
+        return configuration;
+    }
+
+    /**
+     * Random actions from the factories of the player, with a rare invalid output ending the game
+     */
+    private static String randomOutput(String[] input, Random random, int round) {
+        List<int[]> owned = new ArrayList<>();
+        List<Integer> factories = new ArrayList<>();
+        int entityCount = Integer.parseInt(input[0]);
+        for (int i = 1; i <= entityCount; i++) {
+            String[] tokens = input[i].split(" ");
+            if ("FACTORY".equals(tokens[1])) {
+                factories.add(Integer.valueOf(tokens[0]));
+                if ("1".equals(tokens[2])) {
+                    owned.add(new int[] { Integer.parseInt(tokens[0]), Integer.parseInt(tokens[3]) });
+                }
+            }
+        }
+        if (random.nextInt(400) == 0) {
+            return "MOVE 99 1 1";
+        }
+        if (random.nextInt(500) == 0) {
+            return "FOO";
+        }
+        StringBuilder output = new StringBuilder();
+        int actionCount = random.nextInt(6);
+        for (int i = 0; i < actionCount && !owned.isEmpty(); i++) {
+            int[] src = owned.get(random.nextInt(owned.size()));
+            int dst = factories.get(random.nextInt(factories.size()));
+            if (dst == src[0]) {
+                continue;
+            }
+            if (output.length() > 0) {
+                output.append(random.nextBoolean() ? ";" : " ; ");
+            }
+            int kind = random.nextInt(20);
+            if (kind == 0) {
+                output.append("BOMB ").append(src[0]).append(' ').append(dst);
+            } else if (kind < 3) {
+                output.append("INC ").append(src[0]);
+            } else if (kind == 3) {
+                output.append("MSG hello ; world").append(round);
+            } else {
+                output.append(random.nextBoolean() ? "MOVE " : "move ").append(src[0]).append(' ').append(dst).append(' ')
+                        .append(random.nextInt(src[1] + 3));
+            }
+        }
+        return output.length() == 0 ? "WAIT" : output.toString();
+    }
+}